@@ -0,0 +1,337 @@
+package project;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Runs a whole swarm of Peers in this JVM over loopback and measures
+ * how long it takes to distribute the file.
+ *
+ * The harness writes Common.cfg, PeerInfo.cfg and a random file for each
+ * seed into the working directory (Peer reads and writes peer_[id]/ relative
+ * to it), starts every Peer on its own thread at once, and samples heap
+ * usage, thread count and each Peer's progress until all of them finish.
+ * Finally every downloaded copy is compared to the seed's.
+ *
+ * With a WanRelay.Profile (setWan, or the wan.* system properties, see
+ * WanRelay.Profile.fromSystemProperties) every connection goes through
+ * its own WanRelay: each peer gets a PeerInfo_[id].cfg in which the
+ * peers it connects to are listed at their relay's port.
+ *
+ * Usage: java project.SwarmHarness [peers [fileSize [pieceSize [seeds [basePort]]]]]
+ * or gradle swarm -Ppeers=.. -PfileSize=.. -PpieceSize=.. -Pseeds=.. -PbasePort=..
+ * which runs in build/swarm and passes on -Pwan.latency=.. etc. as system properties.
+ */
+public class SwarmHarness {
+
+    public static final int FIRST_ID = 1001;
+    private static final String FILENAME = "thefile";
+    private static final long SAMPLE_MILLIS = 50;
+
+    private final int peers;
+    private final int fileSize;
+    private final int pieceSize;
+    private final int seeds;
+    private final int basePort;
+
+    // Choking parameters of the generated Common.cfg
+    private int numberPreferredNeighbors = 3;
+    private int unchokingInterval = 1;
+    private int optimisticUnchokingInterval = 2;
+    // Liveness settings, scaled down to the length of a harness run
+    private int keepAliveInterval = 1000;
+    private int idleTimeout = 5000;
+
+    private WanRelay.Profile wan; // null -> peers connect directly
+
+    /**
+     * @param peers - total number of peers in the swarm
+     * @param fileSize - size of the distributed file in bytes
+     * @param pieceSize - size of a piece in bytes
+     * @param seeds - how many of the peers (the lowest ids) start with the file
+     * @param basePort - listening port of the first peer; the others use the following ports
+     */
+    public SwarmHarness(int peers, int fileSize, int pieceSize, int seeds, int basePort) {
+        if (peers < 2 || seeds < 1 || seeds >= peers) {
+            throw new IllegalArgumentException("Need at least one seed and one downloading peer");
+        }
+        this.peers = peers;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.seeds = seeds;
+        this.basePort = basePort;
+    }
+
+    public void setChoking(int numberPreferredNeighbors, int unchokingInterval, int optimisticUnchokingInterval) {
+        this.numberPreferredNeighbors = numberPreferredNeighbors;
+        this.unchokingInterval = unchokingInterval;
+        this.optimisticUnchokingInterval = optimisticUnchokingInterval;
+    }
+
+    /**
+     * Route every connection through a WanRelay with these conditions
+     * @param wan - link conditions, or null to connect directly
+     */
+    public void setWan(WanRelay.Profile wan) {
+        this.wan = wan;
+    }
+
+    public List<PeerConfiguration> getPeerConfigurations() {
+        List<PeerConfiguration> configs = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            configs.add(new PeerConfiguration(FIRST_ID + i, "localhost", basePort + i, i < seeds));
+        }
+        return configs;
+    }
+
+    /**
+     * Write Common.cfg, PeerInfo.cfg, the seeds' copies of the file and
+     * empty peer_[id] directories for the others, in the working directory
+     * @return contents of the generated file
+     * @throws IOException if a file can't be written
+     */
+    public byte[] generate() throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Path.of("Common.cfg")))) {
+            out.println("NumberOfPreferredNeighbors " + numberPreferredNeighbors);
+            out.println("UnchokingInterval " + unchokingInterval);
+            out.println("OptimisticUnchokingInterval " + optimisticUnchokingInterval);
+            out.println("FileName " + FILENAME);
+            out.println("FileSize " + fileSize);
+            out.println("PieceSize " + pieceSize);
+            out.println("KeepAliveInterval " + keepAliveInterval);
+            out.println("IdleTimeout " + idleTimeout);
+            out.println("AdvertiseCapabilities 1"); // every peer of the swarm runs this build
+        }
+        writePeerInfo(Path.of("PeerInfo.cfg"), getPeerConfigurations());
+
+        byte[] contents = new byte[fileSize];
+        new Random(42).nextBytes(contents);
+        for (PeerConfiguration peer : getPeerConfigurations()) {
+            Path dir = Path.of("peer_" + peer.getId());
+            Files.createDirectories(dir);
+            Path file = dir.resolve(FILENAME);
+            Files.deleteIfExists(file);
+            if (peer.hasFile()) {
+                Files.write(file, contents);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Write a PeerInfo.cfg listing the given peers
+     * @param path - file to create or replace
+     * @param configs - the peers, in order
+     * @throws IOException if the file can't be written
+     */
+    public static void writePeerInfo(Path path, List<PeerConfiguration> configs) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (PeerConfiguration p : configs) {
+                out.println(p.getId() + " " + p.getHostname() + " " + p.getPort() + " " + (p.hasFile() ? 1 : 0));
+            }
+        }
+    }
+
+    /**
+     * Generate the swarm's files, run it until every Peer finishes or the
+     * timeout passes, and check the downloaded copies
+     * @param timeoutMillis - how long to wait for the swarm
+     * @return the measurements
+     */
+    public Result run(long timeoutMillis) throws IOException, ParseException, InterruptedException {
+        byte[] contents = generate();
+        if (wan == null) {
+            return run(contents, timeoutMillis, id -> "PeerInfo.cfg");
+        }
+
+        List<WanRelay> relays = startRelays();
+        try {
+            return run(contents, timeoutMillis, id -> "PeerInfo_" + id + ".cfg");
+        }
+        finally {
+            for (WanRelay relay : relays) {
+                relay.stop();
+            }
+        }
+    }
+
+    /**
+     * Start one relay per pair of peers, on the ports after the peers' own,
+     * and write the PeerInfo_[id].cfg files which route through them.
+     * Peers connect to lower ids, so a relay forwards to the lower id's port.
+     * @return the relays
+     */
+    private List<WanRelay> startRelays() throws IOException {
+        List<PeerConfiguration> configs = getPeerConfigurations();
+        List<WanRelay> relays = new ArrayList<>();
+        int[][] relayPorts = new int[peers][peers];
+        int nextPort = basePort + peers;
+        for (int low = 0; low < peers; low++) {
+            for (int high = low + 1; high < peers; high++) {
+                relayPorts[high][low] = nextPort;
+                WanRelay relay = new WanRelay(nextPort, configs.get(low).getPort(), wan, nextPort);
+                relay.start();
+                relays.add(relay);
+                nextPort++;
+            }
+        }
+        for (int i = 0; i < peers; i++) {
+            List<PeerConfiguration> view = new ArrayList<>();
+            for (int j = 0; j < peers; j++) {
+                PeerConfiguration c = configs.get(j);
+                int port = j < i ? relayPorts[i][j] : c.getPort();
+                view.add(new PeerConfiguration(c.getId(), c.getHostname(), port, c.hasFile()));
+            }
+            writePeerInfo(Path.of("PeerInfo_" + configs.get(i).getId() + ".cfg"), view);
+        }
+        return relays;
+    }
+
+    /**
+     * Run the swarm from already generated files
+     * @param contents - contents of the seeded file, to check the copies against
+     * @param timeoutMillis - how long to wait for the swarm
+     * @param peerInfo - PeerInfo.cfg path to give each peer id
+     * @return the measurements
+     */
+    public Result run(byte[] contents, long timeoutMillis, IntFunction<String> peerInfo)
+            throws IOException, ParseException, InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        List<Peer> instances = new ArrayList<>();
+        for (PeerConfiguration config : getPeerConfigurations()) {
+            instances.add(new Peer(config.getId(), "Common.cfg", peerInfo.apply(config.getId())));
+        }
+
+        Result result = new Result();
+        result.completionMillis = new long[peers];
+        Arrays.fill(result.completionMillis, -1);
+        long start = System.nanoTime();
+        List<Thread> running = new ArrayList<>();
+        for (Peer peer : instances) {
+            Thread t = new Thread(peer::run, "peer-" + peer.getSelf().getId());
+            t.start();
+            running.add(t);
+        }
+
+        // Sample until every Peer's run() returns
+        long deadline = start + timeoutMillis * 1_000_000L;
+        boolean alive = true;
+        while (alive && System.nanoTime() < deadline) {
+            Thread.sleep(SAMPLE_MILLIS);
+            result.peakHeapBytes = Math.max(result.peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+            alive = false;
+            for (int i = 0; i < peers; i++) {
+                result.connectMillis = Math.max(result.connectMillis, instances.get(i).getConnectMillis());
+                alive |= running.get(i).isAlive();
+                if (result.completionMillis[i] == -1) {
+                    Metrics.Snapshot s = instances.get(i).getMetrics().snapshot();
+                    if (s.getValue("pieces_owned") == s.getValue("pieces_total")) {
+                        result.completionMillis[i] = (System.nanoTime() - start) / 1_000_000L;
+                    }
+                }
+            }
+        }
+        result.elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        result.finished = !alive;
+        result.peakThreads = threads.getPeakThreadCount();
+
+        result.verified = 0;
+        for (PeerConfiguration config : getPeerConfigurations()) {
+            Path file = Path.of("peer_" + config.getId(), FILENAME);
+            if (!config.hasFile() && Files.exists(file) && Arrays.equals(contents, Files.readAllBytes(file))) {
+                result.verified++;
+            }
+        }
+        return result;
+    }
+
+    public class Result {
+        boolean finished;
+        long elapsedMillis; // until every Peer's run() returned
+        long connectMillis; // longest time a Peer took to connect to all its neighbors
+        long[] completionMillis; // when each peer had every piece, -1 if never
+        int verified; // downloading peers whose copy matches the seed's
+        long peakHeapBytes;
+        int peakThreads;
+
+        public boolean isSuccess() {
+            return finished && verified == peers - seeds;
+        }
+
+        // Time until the last downloading peer had every piece
+        public long getDistributionMillis() {
+            long last = 0;
+            for (int i = seeds; i < peers; i++) {
+                if (completionMillis[i] == -1) {
+                    return -1;
+                }
+                last = Math.max(last, completionMillis[i]);
+            }
+            return last;
+        }
+
+        @Override
+        public String toString() {
+            long[] done = Arrays.stream(completionMillis, seeds, peers).filter(t -> t != -1).sorted().toArray();
+            long distribution = getDistributionMillis();
+            double megabytes = (double) fileSize * (peers - seeds) / 1e6;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("peers %d (seeds %d), file %d bytes, pieces %d bytes%n", peers, seeds, fileSize, pieceSize));
+            sb.append(String.format("links                %s%n", wan == null ? "loopback" : wan));
+            sb.append(String.format("finished             %s%n", finished ? "yes" : "no (timed out)"));
+            sb.append(String.format("copies verified      %d of %d%n", verified, peers - seeds));
+            sb.append(String.format("fully connected      %d ms%n", connectMillis));
+            sb.append(String.format("full distribution    %s%n", distribution == -1 ? "-" : distribution + " ms"));
+            if (done.length > 0) {
+                sb.append(String.format("peer completion      p50 %d ms, max %d ms%n", done[done.length / 2], done[done.length - 1]));
+            }
+            sb.append(String.format("aggregate throughput %s%n",
+                    distribution <= 0 ? "-" : String.format("%.2f MB/s", megabytes / (distribution / 1e3))));
+            sb.append(String.format("all peers exited     %d ms%n", elapsedMillis));
+            sb.append(String.format("peak heap            %.1f MB%n", peakHeapBytes / 1e6));
+            sb.append(String.format("peak threads         %d%n", peakThreads));
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 4 * 1024 * 1024;
+        int pieceSize = args.length > 2 ? Integer.parseInt(args[2]) : 32 * 1024;
+        int seeds = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int basePort = args.length > 4 ? Integer.parseInt(args[4]) : 17000;
+        long timeoutMillis = 10 * 60 * 1000;
+
+        Result result;
+        try {
+            SwarmHarness harness = new SwarmHarness(peers, fileSize, pieceSize, seeds, basePort);
+            harness.setWan(WanRelay.Profile.fromSystemProperties());
+            result = harness.run(timeoutMillis);
+        }
+        catch (Exception e) {
+            System.out.println("Swarm could not run");
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        System.out.println();
+        System.out.println("=== Swarm results ===");
+        System.out.print(result);
+        // Peers which did not finish still have non-daemon threads running
+        System.exit(result.isSuccess() ? 0 : 1);
+    }
+}
@@ -0,0 +1,426 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Deterministic discrete-event simulation of a swarm, driven by the
+ * same static decision functions as Peer: computePreferredNeighbors,
+ * computePreferredNeighborsAltruistic, pickOptUnchokedNeighbor and
+ * pickNewPieceToRequest. Time is virtual (microseconds), and the same
+ * seed always gives the same result. A swarm of 1000 peers runs about
+ * 30x faster than wall clock, 10,000 peers about 5x; most of the time
+ * goes to pickNewPieceToRequest and the event queue.
+ *
+ * The model mirrors the messages Peer sends:
+ *   - every unchoking interval each peer picks its preferred neighbors,
+ *     sending unchoke/choke to the ones which changed; every optimistic
+ *     interval it moves its optimistic unchoke
+ *   - an unchoked peer requests one piece from the unchoker, and requests
+ *     the next one when the piece arrives, until it is choked
+ *   - a peer serves requests one at a time at its upload capacity; each
+ *     link adds its own latency and may cap the bandwidth further
+ * Unlike Peer, each peer knows its neighbors' bitfields at once (Have,
+ * Interested and Uninterested are not simulated as messages), and peers
+ * only know a random subset of the swarm (degree) rather than everyone.
+ *
+ * Usage: java project.SwarmSimulator [peers [seeds [pieces [pieceSize [degree [seed]]]]]]
+ * or gradle simulate -Ppeers=.. -Pseeds=.. -Ppieces=.. -PpieceSize=.. -Pdegree=.. -Pseed=..
+ */
+public class SwarmSimulator {
+
+    private static final long MICROS = 1_000_000L;
+
+    // Parameters; the choking ones match the defaults of the project's Common.cfg
+    private final int peerCount;
+    private final int seeds;
+    private final int pieces;
+    private final int pieceSize;
+    private final int degree;
+    private final Random random;
+    private int numberPreferredNeighbors = 3;
+    private long unchokingInterval = 5 * MICROS;
+    private long optimisticUnchokingInterval = 10 * MICROS;
+    private long minUploadRate = 512 * 1024; // bytes per second
+    private long maxUploadRate = 2 * 1024 * 1024;
+    private long minLatency = 5_000; // microseconds, one way
+    private long maxLatency = 100_000;
+    private long maxSimulatedTime = 24 * 3600 * MICROS;
+
+    private SimPeer[] peers;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence; // breaks ties between events at the same time, in scheduling order
+    private long processed;
+    private int incomplete;
+
+    public SwarmSimulator(int peerCount, int seeds, int pieces, int pieceSize, int degree, long seed) {
+        if (peerCount < 2 || seeds < 1 || seeds >= peerCount) {
+            throw new IllegalArgumentException("Need at least one seed and one downloading peer");
+        }
+        this.peerCount = peerCount;
+        this.seeds = seeds;
+        this.pieces = pieces;
+        this.pieceSize = pieceSize;
+        this.degree = Math.min(degree, peerCount - 1);
+        this.random = new Random(seed);
+    }
+
+    public void setChoking(int numberPreferredNeighbors, long unchokingIntervalMillis, long optimisticUnchokingIntervalMillis) {
+        this.numberPreferredNeighbors = numberPreferredNeighbors;
+        this.unchokingInterval = unchokingIntervalMillis * 1000;
+        this.optimisticUnchokingInterval = optimisticUnchokingIntervalMillis * 1000;
+    }
+
+    public void setLinks(long minUploadRate, long maxUploadRate, long minLatencyMillis, long maxLatencyMillis) {
+        this.minUploadRate = minUploadRate;
+        this.maxUploadRate = maxUploadRate;
+        this.minLatency = minLatencyMillis * 1000;
+        this.maxLatency = maxLatencyMillis * 1000;
+    }
+
+    /* Model */
+
+    private static class Link {
+        final long latency; // microseconds
+        final long rate; // bytes per second
+
+        Link(long latency, long rate) {
+            this.latency = latency;
+            this.rate = rate;
+        }
+    }
+
+    private class SimPeer {
+        final int id;
+        final long uploadRate;
+        final boolean[] bitfield = new boolean[pieces];
+        int owned;
+        long completedAt = -1;
+
+        // The same structures Peer keeps for its neighbors
+        final ArrayList<PeerConfiguration> neighbors = new ArrayList<>();
+        final Map<Integer, Link> links = new HashMap<>();
+        final Map<Integer, Integer> scores = new HashMap<>();
+        final Map<Integer, Boolean> interested = new HashMap<>();
+        Map<Integer, Boolean> preferred = new HashMap<>();
+        int optimistic = -1;
+        final Map<Integer, Integer> pendingRequests = new HashMap<>();
+        final Set<Integer> unchokedBy = new HashSet<>();
+        // By position in neighbors: how many pieces the neighbor has that this peer lacks, kept up to date
+        // as pieces arrive so interest is known without scanning bitfields, and this peer's position in the
+        // neighbor's own list
+        int[] wanted;
+        int[] reverseSlot;
+        long uploadBusyUntil; // when the piece being uploaded has been sent
+
+        SimPeer(int id, long uploadRate) {
+            this.id = id;
+            this.uploadRate = uploadRate;
+        }
+
+        boolean isUnchoking(int neighbor) {
+            return preferred.getOrDefault(neighbor, false) || optimistic == neighbor;
+        }
+
+    }
+
+    private void connect(SimPeer a, SimPeer b) {
+        long latency = minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+        // The link itself may be slower than either end
+        long rate = minUploadRate + (long) (random.nextDouble() * (2 * maxUploadRate - minUploadRate));
+        Link link = new Link(latency, rate);
+        a.neighbors.add(new PeerConfiguration(b.id, "sim", 0, false));
+        b.neighbors.add(new PeerConfiguration(a.id, "sim", 0, false));
+        a.links.put(b.id, link);
+        b.links.put(a.id, link);
+    }
+
+    private void build() {
+        peers = new SimPeer[peerCount];
+        for (int i = 0; i < peerCount; i++) {
+            long rate = minUploadRate + (long) (random.nextDouble() * (maxUploadRate - minUploadRate));
+            peers[i] = new SimPeer(i, rate);
+            if (i < seeds) {
+                Arrays.fill(peers[i].bitfield, true);
+                peers[i].owned = pieces;
+                peers[i].completedAt = 0;
+            }
+        }
+        // A ring keeps the graph connected; random chords bring each peer up to about degree neighbors
+        for (int i = 0; i < peerCount; i++) {
+            SimPeer a = peers[i];
+            SimPeer b = peers[(i + 1) % peerCount];
+            if (!a.links.containsKey(b.id) && a != b) {
+                connect(a, b);
+            }
+        }
+        for (SimPeer a : peers) {
+            int attempts = 0;
+            while (a.neighbors.size() < degree && attempts++ < degree * 4) {
+                SimPeer b = peers[random.nextInt(peerCount)];
+                if (b != a && !a.links.containsKey(b.id) && b.neighbors.size() < degree) {
+                    connect(a, b);
+                }
+            }
+        }
+        Map<Long, Integer> slots = new HashMap<>(); // (peer, neighbor) -> position of neighbor in peer's list
+        for (SimPeer p : peers) {
+            for (int j = 0; j < p.neighbors.size(); j++) {
+                slots.put((long) p.id * peerCount + p.neighbors.get(j).getId(), j);
+            }
+        }
+        for (SimPeer p : peers) {
+            p.wanted = new int[p.neighbors.size()];
+            p.reverseSlot = new int[p.neighbors.size()];
+            for (int j = 0; j < p.neighbors.size(); j++) {
+                SimPeer other = peers[p.neighbors.get(j).getId()];
+                p.scores.put(other.id, 0);
+                p.interested.put(other.id, false);
+                p.preferred.put(other.id, false);
+                p.reverseSlot[j] = slots.get((long) other.id * peerCount + p.id);
+                for (int i = 0; i < pieces; i++) {
+                    if (other.bitfield[i] && !p.bitfield[i]) {
+                        p.wanted[j]++;
+                    }
+                }
+            }
+        }
+        incomplete = peerCount - seeds;
+    }
+
+    /* Events */
+
+    private enum Type { PREFERRED_ROUND, OPTIMISTIC_ROUND, UNCHOKE, CHOKE, REQUEST, PIECE }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Type type;
+        final int to; // peer which handles the event
+        final int from; // peer which sent the message, if any
+        final int piece;
+
+        Event(long time, long sequence, Type type, int to, int from, int piece) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.to = to;
+            this.from = from;
+            this.piece = piece;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return time != o.time ? Long.compare(time, o.time) : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private void schedule(long time, Type type, int to, int from, int piece) {
+        events.add(new Event(time, sequence++, type, to, from, piece));
+    }
+
+    // Deliver a control message over the link between the peers
+    private void send(Type type, SimPeer from, int to, int piece) {
+        schedule(now + from.links.get(to).latency, type, to, from.id, piece);
+    }
+
+    private void preferredRound(SimPeer p) {
+        for (int j = 0; j < p.neighbors.size(); j++) {
+            SimPeer other = peers[p.neighbors.get(j).getId()];
+            p.interested.put(other.id, other.wanted[p.reverseSlot[j]] > 0);
+        }
+        Map<Integer, Boolean> newPreferred = p.completedAt >= 0
+                ? Peer.computePreferredNeighborsAltruistic(p.neighbors, p.interested, numberPreferredNeighbors, random)
+                : Peer.computePreferredNeighbors(p.neighbors, p.scores, p.interested, numberPreferredNeighbors, random);
+        for (PeerConfiguration n : p.neighbors) {
+            int id = n.getId();
+            if (newPreferred.get(id) && !p.preferred.get(id)) {
+                send(Type.UNCHOKE, p, id, -1);
+            }
+            else if (!newPreferred.get(id) && p.preferred.get(id) && p.optimistic != id) {
+                send(Type.CHOKE, p, id, -1);
+            }
+            p.scores.put(id, 0);
+        }
+        p.preferred = newPreferred;
+        schedule(now + unchokingInterval, Type.PREFERRED_ROUND, p.id, -1, -1);
+    }
+
+    private void optimisticRound(SimPeer p) {
+        int previous = p.optimistic;
+        int chosen = Peer.pickOptUnchokedNeighbor(p.neighbors, p.preferred, p.interested, previous, random);
+        p.optimistic = chosen;
+        // As in Peer: choke the old one unless it is preferred or picked again, also when there is no
+        // new one, or its requests would be ignored while it still holds a piece as pending
+        if (previous != -1 && previous != chosen && !p.preferred.get(previous)) {
+            send(Type.CHOKE, p, previous, -1);
+        }
+        if (chosen != -1 && chosen != previous) {
+            send(Type.UNCHOKE, p, chosen, -1);
+        }
+        schedule(now + optimisticUnchokingInterval, Type.OPTIMISTIC_ROUND, p.id, -1, -1);
+    }
+
+    // The requesting side of Peer.handleUnchokeMessage and handlePieceMessage
+    private void requestNext(SimPeer p, int from) {
+        int piece = Peer.pickNewPieceToRequest(peers[from].bitfield, p.bitfield, p.pendingRequests, random);
+        if (piece != -1) {
+            p.pendingRequests.put(from, piece);
+            send(Type.REQUEST, p, from, piece);
+        }
+    }
+
+    private void handle(Event e) {
+        SimPeer p = peers[e.to];
+        switch (e.type) {
+            case PREFERRED_ROUND:
+                preferredRound(p);
+                break;
+            case OPTIMISTIC_ROUND:
+                optimisticRound(p);
+                break;
+            case UNCHOKE:
+                p.unchokedBy.add(e.from);
+                requestNext(p, e.from);
+                break;
+            case CHOKE:
+                p.unchokedBy.remove(e.from);
+                p.pendingRequests.remove(e.from);
+                break;
+            case REQUEST:
+                // Serve it if still unchoked, after the piece being uploaded now
+                if (p.isUnchoking(e.from) && p.bitfield[e.piece]) {
+                    Link link = p.links.get(e.from);
+                    long rate = Math.min(p.uploadRate, link.rate);
+                    long start = Math.max(now, p.uploadBusyUntil);
+                    p.uploadBusyUntil = start + pieceSize * MICROS / rate;
+                    schedule(p.uploadBusyUntil + link.latency, Type.PIECE, e.from, p.id, e.piece);
+                }
+                break;
+            case PIECE:
+                Integer requested = p.pendingRequests.get(e.from);
+                if (requested != null && requested == e.piece && !p.bitfield[e.piece]) {
+                    p.pendingRequests.remove(e.from);
+                    p.bitfield[e.piece] = true;
+                    p.owned++;
+                    // Neighbors with the piece have one less to offer p; those without it have one more to want
+                    for (int j = 0; j < p.neighbors.size(); j++) {
+                        SimPeer other = peers[p.neighbors.get(j).getId()];
+                        if (other.bitfield[e.piece]) {
+                            p.wanted[j]--;
+                        }
+                        else {
+                            other.wanted[p.reverseSlot[j]]++;
+                        }
+                    }
+                    p.scores.merge(e.from, 1, Integer::sum);
+                    if (p.owned == pieces) {
+                        p.completedAt = now;
+                        incomplete--;
+                    }
+                }
+                if (p.unchokedBy.contains(e.from)) {
+                    requestNext(p, e.from);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Run the simulation until every peer has the file or the simulated time limit passes
+     * @return the measurements
+     */
+    public Result run() {
+        long wallStart = System.nanoTime();
+        build();
+        // Peers start at staggered times within the first interval, as they would in practice
+        for (SimPeer p : peers) {
+            schedule((long) (random.nextDouble() * unchokingInterval), Type.PREFERRED_ROUND, p.id, -1, -1);
+            schedule((long) (random.nextDouble() * optimisticUnchokingInterval), Type.OPTIMISTIC_ROUND, p.id, -1, -1);
+        }
+        while (incomplete > 0 && !events.isEmpty()) {
+            Event e = events.poll();
+            if (e.time > maxSimulatedTime) {
+                break;
+            }
+            now = e.time;
+            handle(e);
+            processed++;
+        }
+
+        Result result = new Result();
+        result.simulatedMicros = now;
+        result.wallNanos = System.nanoTime() - wallStart;
+        result.events = processed;
+        List<Long> completions = new ArrayList<>();
+        for (SimPeer p : peers) {
+            if (p.id >= seeds && p.completedAt >= 0) {
+                completions.add(p.completedAt);
+            }
+        }
+        result.completionMicros = completions.stream().mapToLong(Long::longValue).sorted().toArray();
+        result.incomplete = incomplete;
+        return result;
+    }
+
+    public class Result {
+        long simulatedMicros;
+        long wallNanos;
+        long events;
+        long[] completionMicros; // sorted completion times of the downloading peers which finished
+        int incomplete;
+
+        public long[] getCompletionMicros() {
+            return completionMicros;
+        }
+
+        public int getIncomplete() {
+            return incomplete;
+        }
+
+        private double percentileSeconds(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * completionMicros.length) - 1;
+            return completionMicros[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("peers %d (seeds %d, degree %d), %d pieces of %d bytes%n",
+                    peerCount, seeds, degree, pieces, pieceSize));
+            sb.append(String.format("completed            %d of %d%n", completionMicros.length, peerCount - seeds));
+            if (completionMicros.length > 0) {
+                sb.append(String.format("completion (s)       min %.1f  p10 %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                        percentileSeconds(0), percentileSeconds(10), percentileSeconds(50),
+                        percentileSeconds(90), percentileSeconds(99), percentileSeconds(100)));
+            }
+            sb.append(String.format("simulated time       %.1f s%n", simulatedMicros / 1e6));
+            // Peer-seconds per second is what a real-time test bed would need peers for
+            sb.append(String.format("wall time            %.2f s (%.0fx faster, %.0f peer-seconds per second)%n",
+                    wallNanos / 1e9, simulatedMicros * 1e3 / Math.max(1, wallNanos),
+                    simulatedMicros * 1e3 * peerCount / Math.max(1, wallNanos)));
+            sb.append(String.format("events               %d%n", events));
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int pieces = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int pieceSize = args.length > 3 ? Integer.parseInt(args[3]) : 256 * 1024;
+        int degree = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+
+        Result result = new SwarmSimulator(peers, seeds, pieces, pieceSize, degree, seed).run();
+        System.out.print(result);
+    }
+}
@@ -0,0 +1,296 @@
+package project;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP relay which makes a loopback connection behave like a WAN link.
+ * It listens on a local port and forwards every connection it accepts to
+ * a target port, in both directions, adding to each direction:
+ *
+ *   latency    one-way delay of every chunk, plus uniform random jitter
+ *              (chunks are never reordered, as on a TCP stream)
+ *   bandwidth  a TokenBucket cap in bytes per second, 0 for none
+ *   loss       fraction of chunks which are "lost"; TCP hides the loss, so
+ *              it shows up as a retransmission delay of RETRANSMIT_MILLIS
+ *   resets     on average one reset per resetBytes bytes relayed (0 for
+ *              none), closing both sides with an RST
+ *
+ * Each direction uses a reader thread, which timestamps chunks as they
+ * arrive, and a writer thread, which releases them when they are due.
+ * The end of one direction is passed on as a half-close; a connection's
+ * sockets are closed once both directions have ended.
+ */
+public class WanRelay {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long RETRANSMIT_MILLIS = 200; // a typical minimum TCP retransmission timeout
+
+    /**
+     * Conditions of one link; the same in both directions
+     */
+    public static class Profile {
+        final long latencyMillis;
+        final long jitterMillis;
+        final long bandwidth;
+        final double loss;
+        final long resetBytes;
+
+        public Profile(long latencyMillis, long jitterMillis, long bandwidth, double loss, long resetBytes) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.bandwidth = bandwidth;
+            this.loss = loss;
+            this.resetBytes = resetBytes;
+        }
+
+        /**
+         * Read a profile from the system properties wan.latency, wan.jitter
+         * (milliseconds), wan.bandwidth (bytes per second), wan.loss (0 to 1)
+         * and wan.resetBytes
+         * @return the profile, or null if none of the properties are set
+         */
+        public static Profile fromSystemProperties() {
+            String[] names = {"wan.latency", "wan.jitter", "wan.bandwidth", "wan.loss", "wan.resetBytes"};
+            if (Arrays.stream(names).noneMatch(n -> System.getProperty(n) != null)) {
+                return null;
+            }
+            return new Profile(
+                    Long.getLong("wan.latency", 0),
+                    Long.getLong("wan.jitter", 0),
+                    Long.getLong("wan.bandwidth", 0),
+                    Double.parseDouble(System.getProperty("wan.loss", "0")),
+                    Long.getLong("wan.resetBytes", 0));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency %d ms, jitter %d ms, bandwidth %s, loss %.3f, reset every %s",
+                    latencyMillis, jitterMillis, bandwidth == 0 ? "unlimited" : bandwidth + " B/s",
+                    loss, resetBytes == 0 ? "never" : resetBytes + " bytes");
+        }
+    }
+
+    // A chunk of the stream and when it may be written; an empty chunk marks the end of the stream
+    private static class Chunk {
+        final byte[] data;
+        final long dueNanos;
+
+        Chunk(byte[] data, long dueNanos) {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private final int listenPort;
+    private final int targetPort;
+    private final Profile profile;
+    private final Random random;
+    private ServerSocket listener;
+    private Thread acceptor;
+    private final Set<Socket> sockets = new HashSet<>(); // of the connections being relayed
+    private volatile boolean stopped = false;
+
+    /**
+     * @param listenPort - local port to accept connections on
+     * @param targetPort - local port to forward them to
+     * @param profile - conditions to apply
+     * @param seed - seed of the jitter, loss and reset randomness
+     */
+    public WanRelay(int listenPort, int targetPort, Profile profile, long seed) {
+        this.listenPort = listenPort;
+        this.targetPort = targetPort;
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    public void start() throws IOException {
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        acceptor = new Thread(this::acceptLoop, "wan-relay-" + listenPort);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        try {
+            listener.close();
+        }
+        catch (IOException e) {
+            System.out.println("WanRelay on port " + listenPort + " could not close its listener");
+        }
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                closeQuietly(s);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!stopped) {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                synchronized (sockets) {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+                Socket[] pair = {client, server};
+                AtomicInteger open = new AtomicInteger(2); // directions still relaying
+                // One bandwidth cap per direction
+                relay(client, server, pair, open, new TokenBucket(profile.bandwidth), "up");
+                relay(server, client, pair, open, new TokenBucket(profile.bandwidth), "down");
+            }
+            catch (IOException e) {
+                if (!stopped) {
+                    System.out.println("WanRelay on port " + listenPort + " could not relay a connection");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Relay one direction of a connection. Neither thread closes a
+     * socket, since the other direction still uses it; the end of the
+     * stream is passed on with shutdownOutput().
+     * @param open - directions of the connection still relaying, shared by both
+     */
+    private void relay(Socket from, Socket to, Socket[] pair, AtomicInteger open, TokenBucket bucket, String direction) {
+        BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+        String name = "wan-relay-" + listenPort + "-" + direction;
+
+        Thread reader = new Thread(() -> {
+            long lastDue = 0;
+            long bytesUntilReset = nextResetBytes();
+            try {
+                InputStream in = from.getInputStream();
+                byte[] buf = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    long delay = profile.latencyMillis + (profile.jitterMillis > 0 ? nextLong(profile.jitterMillis + 1) : 0);
+                    if (profile.loss > 0 && nextDouble() < profile.loss) {
+                        delay += RETRANSMIT_MILLIS;
+                    }
+                    // TCP delivers in order, so a chunk is never due before the previous one
+                    lastDue = Math.max(lastDue, System.nanoTime() + delay * 1_000_000L);
+                    chunks.put(new Chunk(Arrays.copyOf(buf, n), lastDue));
+
+                    bytesUntilReset -= n;
+                    if (bytesUntilReset <= 0) {
+                        reset(pair);
+                        break;
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                // The connection was closed or reset
+            }
+            chunks.add(new Chunk(new byte[0], 0));
+        }, name + "-in");
+
+        Thread writer = new Thread(() -> {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    if (chunk.data.length == 0) {
+                        break;
+                    }
+                    long wait = chunk.dueNanos - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                    }
+                    bucket.acquire(chunk.data.length);
+                    out.write(chunk.data);
+                    out.flush();
+                }
+                // Pass the end of the stream on, leaving the other direction open
+                to.shutdownOutput();
+            }
+            catch (IOException | InterruptedException e) {
+                // The connection was closed or reset; stop reading what can no longer be delivered
+                try {
+                    from.shutdownInput();
+                }
+                catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+            directionEnded(pair, open);
+        }, name + "-out");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    // The last direction of a connection to end closes its sockets and forgets them
+    private void directionEnded(Socket[] pair, AtomicInteger open) {
+        if (open.decrementAndGet() == 0) {
+            synchronized (sockets) {
+                for (Socket s : pair) {
+                    closeQuietly(s);
+                    sockets.remove(s);
+                }
+            }
+        }
+    }
+
+    // Close both sockets with an RST rather than a FIN
+    private void reset(Socket[] pair) {
+        for (Socket s : pair) {
+            try {
+                s.setSoLinger(true, 0);
+            }
+            catch (SocketException e) {
+                // Already closed
+            }
+            closeQuietly(s);
+        }
+    }
+
+    private long nextResetBytes() {
+        if (profile.resetBytes == 0) {
+            return Long.MAX_VALUE;
+        }
+        // Exponentially distributed, so resets are memoryless
+        return (long) (-Math.log(1 - nextDouble()) * profile.resetBytes) + 1;
+    }
+
+    // The relay threads share one Random
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private synchronized long nextLong(long bound) {
+        return (long) (random.nextDouble() * bound);
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        }
+        catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+}
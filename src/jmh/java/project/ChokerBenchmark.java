@@ -0,0 +1,84 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one choking round (the static functions behind
+ * DETERMINE_PREFERRED_NEIGHBORS and DETERMINE_OPT_UNCHOKED_NEIGHBOR)
+ * as the number of neighbors grows.
+ *
+ * density is the fraction of neighbors which are interested. Scores
+ * (pieces received last interval) are drawn from a small range so
+ * that ties, which are broken randomly, are common.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChokerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double density;
+
+    @Param({"4"})
+    public int numberPreferredNeighbors;
+
+    ArrayList<PeerConfiguration> neighbors;
+    Map<Integer, Integer> scores;
+    ConcurrentMap<Integer, Boolean> interested;
+    ConcurrentMap<Integer, Boolean> preferred;
+    int optimistic;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        neighbors = new ArrayList<>(peers);
+        scores = new HashMap<>();
+        interested = new ConcurrentHashMap<>();
+        for (int id = 1; id <= peers; id++) {
+            neighbors.add(new PeerConfiguration(id, "localhost", 6000 + id, false));
+            scores.put(id, random.nextInt(10));
+            interested.put(id, random.nextDouble() < density);
+        }
+        preferred = Peer.computePreferredNeighbors(neighbors, scores, interested, numberPreferredNeighbors);
+        optimistic = -1;
+    }
+
+    @Benchmark
+    public ConcurrentMap<Integer, Boolean> computePreferredNeighbors() {
+        return Peer.computePreferredNeighbors(neighbors, scores, interested, numberPreferredNeighbors);
+    }
+
+    @Benchmark
+    public ConcurrentMap<Integer, Boolean> computePreferredNeighborsAltruistic() {
+        return Peer.computePreferredNeighborsAltruistic(neighbors, interested, numberPreferredNeighbors);
+    }
+
+    @Benchmark
+    public Integer pickOptUnchokedNeighbor() {
+        return Peer.pickOptUnchokedNeighbor(neighbors, preferred, interested, optimistic);
+    }
+}
@@ -0,0 +1,191 @@
+package project;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of encoding (Message.serializeToBytes) and decoding
+ * (bytes off the socket through MessageFactory.makeMessage) for every
+ * message type. Run with "gradle jmh", which adds the GC profiler so
+ * the allocation rate per operation is reported next to the throughput.
+ *
+ * Each kind of frame has its own State so that its parameters are
+ * not multiplied with the parameters of the others.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g") // 16 MB pieces are decoded through a List<Byte>
+public class CodecBenchmark {
+
+    private static final PeerConfiguration PEER = new PeerConfiguration(1002, "localhost", 6009, true);
+    private static final MessageFactory FACTORY = new MessageFactory();
+
+    /**
+     * Fixed-size frames: the four control messages, have and request
+     */
+    @State(Scope.Thread)
+    public static class ControlFrame {
+
+        @Param({"choke", "unchoke", "interested", "uninterested", "have", "request"})
+        public String type;
+
+        Message msg;
+        byte[] frame;
+
+        @Setup
+        public void setUp() {
+            switch (type) {
+                case "choke":
+                    msg = new ChokeMessage(PEER);
+                    break;
+                case "unchoke":
+                    msg = new UnchokeMessage(PEER);
+                    break;
+                case "interested":
+                    msg = new InterestedMessage(PEER);
+                    break;
+                case "uninterested":
+                    msg = new UninterestedMessage(PEER);
+                    break;
+                case "have":
+                    msg = new HaveMessage(1234, PEER);
+                    break;
+                case "request":
+                    msg = new RequestMessage(1234, PEER);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message type " + type);
+            }
+            frame = msg.serializeToBytes();
+        }
+    }
+
+    /**
+     * Bitfields for a range of piece counts; half of the pieces are owned
+     */
+    @State(Scope.Thread)
+    public static class BitfieldFrame {
+
+        @Param({"133", "8192", "131072"})
+        public int pieces;
+
+        boolean[] owned;
+        byte[] frame;
+
+        @Setup
+        public void setUp() {
+            Random random = new Random(42);
+            owned = new boolean[pieces];
+            for (int i = 0; i < pieces; i++) {
+                owned[i] = random.nextBoolean();
+            }
+            frame = new BitfieldMessage(owned, PEER).serializeToBytes();
+        }
+    }
+
+    /**
+     * Piece frames from one block up to 16 MB
+     */
+    @State(Scope.Thread)
+    public static class PieceFrame {
+
+        @Param({"16384", "262144", "1048576", "16777216"})
+        public int pieceSize;
+
+        Message msg;
+        byte[] frame;
+
+        @Setup
+        public void setUp() {
+            byte[] piece = new byte[pieceSize];
+            new Random(42).nextBytes(piece);
+            msg = new PieceMessage(7, piece, PEER);
+            frame = msg.serializeToBytes();
+        }
+    }
+
+    /**
+     * A Have broadcast to a range of neighbor counts
+     */
+    @State(Scope.Thread)
+    public static class Broadcast {
+
+        @Param({"10", "100", "500"})
+        public int neighbors;
+
+        PeerConfiguration[] peers;
+
+        @Setup
+        public void setUp() {
+            peers = new PeerConfiguration[neighbors];
+            for (int i = 0; i < neighbors; i++) {
+                peers[i] = new PeerConfiguration(2000 + i, "localhost", 7000 + i, false);
+            }
+        }
+    }
+
+    @Benchmark
+    public long broadcastPerNeighbor(Broadcast s) {
+        long bytes = 0;
+        for (PeerConfiguration peer : s.peers) {
+            bytes += new HaveMessage(1234, peer).serializeToBytes().length;
+        }
+        return bytes;
+    }
+
+    // As Peer broadcasts: one EncodedFrame, whose bytes every Server writes
+    @Benchmark
+    public long broadcastEncodedOnce(Broadcast s) {
+        EncodedFrame frame = new EncodedFrame(new HaveMessage(1234, PEER));
+        long bytes = 0;
+        for (int i = 0; i < s.peers.length; i++) {
+            bytes += frame.serializeToBytes().length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] encodeControl(ControlFrame s) {
+        return s.msg.serializeToBytes();
+    }
+
+    @Benchmark
+    public Message decodeControl(ControlFrame s) {
+        return FACTORY.makeMessage(StringEncoder.bytesToString(s.frame), PEER);
+    }
+
+    // Includes packing the booleans into bits, as Peer does for every bitfield it sends
+    @Benchmark
+    public byte[] encodeBitfield(BitfieldFrame s) {
+        return new BitfieldMessage(s.owned, PEER).serializeToBytes();
+    }
+
+    @Benchmark
+    public Message decodeBitfield(BitfieldFrame s) {
+        return FACTORY.makeMessage(StringEncoder.bytesToString(s.frame), PEER);
+    }
+
+    @Benchmark
+    public byte[] encodePiece(PieceFrame s) {
+        return s.msg.serializeToBytes();
+    }
+
+    @Benchmark
+    public Message decodePiece(PieceFrame s) {
+        return FACTORY.makeMessage(StringEncoder.bytesToString(s.frame), PEER);
+    }
+}
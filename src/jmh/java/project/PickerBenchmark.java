@@ -0,0 +1,84 @@
+package project;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one call to the piece picker (Peer.pickNewPieceToRequest)
+ * and of the completion check (Peer.hasAllPieces) as the swarm grows.
+ *
+ * density is the fraction of pieces owned by the neighbor; this peer
+ * owns half as many, so roughly density / 2 of the pieces are
+ * candidates. Every other neighbor has one request outstanding,
+ * as in Peer.pendingRequests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PickerBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int pieces;
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    @Param({"0.1", "0.5", "0.9"})
+    public double density;
+
+    boolean[] peerBitfield;
+    boolean[] selfBitfield;
+    boolean[] complete;
+    Map<Integer, Integer> requests;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        peerBitfield = new boolean[pieces];
+        selfBitfield = new boolean[pieces];
+        for (int i = 0; i < pieces; i++) {
+            peerBitfield[i] = random.nextDouble() < density;
+            selfBitfield[i] = random.nextDouble() < density / 2;
+        }
+        complete = new boolean[pieces];
+        Arrays.fill(complete, true);
+        requests = new HashMap<>();
+        for (int id = 1; id < peers; id++) {
+            requests.put(id, random.nextInt(pieces));
+        }
+    }
+
+    @Benchmark
+    public Integer pickNewPieceToRequest() {
+        return Peer.pickNewPieceToRequest(peerBitfield, selfBitfield, requests);
+    }
+
+    // Worst case: scans the whole bitfield
+    @Benchmark
+    public boolean hasAllPiecesComplete() {
+        return Peer.hasAllPieces(complete);
+    }
+
+    @Benchmark
+    public boolean hasAllPiecesPartial() {
+        return Peer.hasAllPieces(selfBitfield);
+    }
+}
@@ -0,0 +1,200 @@
+package project;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Piece reads and writes in random piece order (the access pattern of
+ * Peer.loadPiece and Peer.storePiece) through four I/O strategies:
+ *
+ *   raf      RandomAccessFile seek + read/write, as Peer does today
+ *   channel  FileChannel positional read/write into a heap ByteBuffer
+ *   direct   FileChannel positional read/write into a direct ByteBuffer
+ *   mmap     copies to/from a MappedByteBuffer of the whole file
+ *
+ * The file lives in java.io.tmpdir (override with -Dstorage.dir=...
+ * to test another disk). Writes are not forced to disk, matching Peer.
+ * Per-op latency is the SampleTime score; the "megabytes" secondary
+ * score of the Throughput mode is MB/s.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageBenchmark {
+
+    @Param({"16384", "262144", "1048576"})
+    public int pieceSize;
+
+    @Param({"256"})
+    public int fileMegabytes;
+
+    private Path path;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private byte[] heapPiece;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+    private int[] order; // random permutation of the piece indices
+    private int next;
+
+    /**
+     * Bytes moved, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String dir = System.getProperty("storage.dir", System.getProperty("java.io.tmpdir"));
+        path = Files.createTempFile(Path.of(dir), "storage", ".bin");
+        long fileSize = (long) fileMegabytes * 1024 * 1024;
+        int pieces = (int) (fileSize / pieceSize);
+
+        raf = new RandomAccessFile(path.toFile(), "rw");
+        raf.setLength(fileSize);
+        channel = raf.getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+        heapPiece = new byte[pieceSize];
+        new Random(42).nextBytes(heapPiece);
+        heapBuffer = ByteBuffer.wrap(heapPiece);
+        directBuffer = ByteBuffer.allocateDirect(pieceSize);
+        directBuffer.put(heapPiece).flip();
+
+        // Write the whole file once, so reads don't hit holes
+        for (int i = 0; i < pieces; i++) {
+            raf.seek((long) i * pieceSize);
+            raf.write(heapPiece);
+        }
+
+        order = new int[pieces];
+        for (int i = 0; i < pieces; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(7);
+        for (int i = pieces - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mapped = null;
+        raf.close();
+        Files.deleteIfExists(path);
+    }
+
+    private long nextOffset() {
+        int index = order[next];
+        next = (next + 1) % order.length;
+        return (long) index * pieceSize;
+    }
+
+    @Benchmark
+    public int rafRead(Bytes bytes) throws IOException {
+        raf.seek(nextOffset());
+        int n = raf.read(heapPiece);
+        bytes.megabytes += n / 1e6;
+        return n;
+    }
+
+    @Benchmark
+    public void rafWrite(Bytes bytes) throws IOException {
+        raf.seek(nextOffset());
+        raf.write(heapPiece);
+        bytes.megabytes += pieceSize / 1e6;
+    }
+
+    @Benchmark
+    public int channelRead(Bytes bytes) throws IOException {
+        return channelRead(heapBuffer, bytes);
+    }
+
+    @Benchmark
+    public int channelWrite(Bytes bytes) throws IOException {
+        return channelWrite(heapBuffer, bytes);
+    }
+
+    @Benchmark
+    public int directRead(Bytes bytes) throws IOException {
+        return channelRead(directBuffer, bytes);
+    }
+
+    @Benchmark
+    public int directWrite(Bytes bytes) throws IOException {
+        return channelWrite(directBuffer, bytes);
+    }
+
+    @Benchmark
+    public byte[] mmapRead(Bytes bytes) {
+        mapped.get((int) nextOffset(), heapPiece);
+        bytes.megabytes += pieceSize / 1e6;
+        return heapPiece;
+    }
+
+    @Benchmark
+    public void mmapWrite(Bytes bytes) {
+        mapped.put((int) nextOffset(), heapPiece);
+        bytes.megabytes += pieceSize / 1e6;
+    }
+
+    // Positional reads and writes can return early, so loop until the whole piece is done
+    private int channelRead(ByteBuffer buffer, Bytes bytes) throws IOException {
+        long offset = nextOffset();
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        bytes.megabytes += buffer.position() / 1e6;
+        return buffer.position();
+    }
+
+    private int channelWrite(ByteBuffer buffer, Bytes bytes) throws IOException {
+        long offset = nextOffset();
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        bytes.megabytes += pieceSize / 1e6;
+        return pieceSize;
+    }
+}
@@ -37,6 +37,43 @@ public class BitfieldMessage extends Message {
         this.bitfield = bitfield;
     }
 
+    /**
+     * Constructor for the compact encodings, which override
+     * hasPiece and the serialization
+     * @param peer - the sender or intended receiver (context dependent)
+     */
+    protected BitfieldMessage(PeerConfiguration peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * The smallest encoding of a bitfield: HaveAll, HaveNone, run
+     * lengths, or the full bitmap. Only for a neighbor which
+     * negotiated Capabilities.FAST_BITFIELD.
+     * @param bitfield - which pieces are owned
+     * @param peer - the intended receiver
+     * @return the message to send
+     */
+    static BitfieldMessage compact(boolean[] bitfield, PeerConfiguration peer) {
+        boolean any = false;
+        boolean all = true;
+        for (boolean b : bitfield) {
+            any |= b;
+            all &= b;
+        }
+        if (all) {
+            return new HaveAllMessage(peer);
+        }
+        else if (!any) {
+            return new HaveNoneMessage(peer);
+        }
+        int bitmapLength = 5 + (bitfield.length + 7) / 8;
+        if (RunLengthBitfieldMessage.encodedLength(bitfield) < bitmapLength) {
+            return new RunLengthBitfieldMessage(bitfield, peer);
+        }
+        return new BitfieldMessage(bitfield, peer);
+    }
+
     boolean hasPiece(int index) {
         if (index > bitfield.length * 8 || index < 0) {
             throw new IndexOutOfBoundsException("Invalid bit index in bitfield");
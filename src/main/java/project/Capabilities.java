@@ -0,0 +1,85 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Protocol extensions, negotiated in the 10 reserved bytes of the
+ * handshake. Each side sets the bits of the extensions it speaks,
+ * and a connection uses only those in both; a peer which sends
+ * zeros (the original protocol) gets none. Bits this build doesn't
+ * know are ignored rather than rejected, so newer peers can add
+ * extensions.
+ *
+ * A peer without this class rejects a handshake whose reserved
+ * bytes aren't all zero, so advertising is opt-in
+ * (AdvertiseCapabilities in Common.cfg): a new peer which doesn't
+ * advertise interoperates with every peer, and one which does only
+ * with peers which accept reserved bits.
+ *
+ * Capability n is bit n % 8 of reserved byte 9 - n / 8; the low
+ * 64 capabilities fit in a long, and the first two reserved bytes
+ * are not used yet.
+ */
+public final class Capabilities {
+
+    public static final int RESERVED_BYTES = 10;
+
+    public static final long PING = 1L; // PingMessage and PongMessage, keep-alives with RTT measurement
+    public static final long FAST_BITFIELD = 1L << 1; // HaveAllMessage, HaveNoneMessage and RunLengthBitfieldMessage
+    public static final long BATCH_HAVE = 1L << 2; // HaveBatchMessage
+
+    // Everything this build implements; a bit is added here as its extension lands
+    public static final long SUPPORTED = PING | FAST_BITFIELD | BATCH_HAVE;
+
+    private static final long[] BITS = {PING, FAST_BITFIELD, BATCH_HAVE};
+    private static final String[] NAMES = {"ping", "fast-bitfield", "batch-have"};
+
+    private Capabilities() {
+    }
+
+    /**
+     * @param capabilities - capability bits
+     * @return the reserved bytes of a handshake advertising them
+     */
+    public static byte[] toReservedBytes(long capabilities) {
+        byte[] bytes = new byte[RESERVED_BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            bytes[RESERVED_BYTES - 1 - i] = (byte) (capabilities >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * @param bytes - a handshake's reserved bytes
+     * @return the capability bits they advertise
+     */
+    public static long fromReservedBytes(byte[] bytes) {
+        if (bytes.length != RESERVED_BYTES) {
+            throw new IllegalArgumentException("Expected " + RESERVED_BYTES + " reserved bytes, got " + bytes.length);
+        }
+        long capabilities = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            capabilities |= (bytes[RESERVED_BYTES - 1 - i] & 0xFFL) << (8 * i);
+        }
+        return capabilities;
+    }
+
+    /**
+     * @param capabilities - capability bits
+     * @return their names, e.g. "ping", or "none"
+     */
+    public static String describe(long capabilities) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < BITS.length; i++) {
+            if ((capabilities & BITS[i]) != 0) {
+                names.add(NAMES[i]);
+            }
+        }
+        long unknown = capabilities & ~SUPPORTED;
+        if (unknown != 0) {
+            names.add(String.format("unknown(0x%x)", unknown));
+        }
+        return names.isEmpty() ? "none" : String.join(",", names);
+    }
+}
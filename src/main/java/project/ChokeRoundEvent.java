@@ -0,0 +1,26 @@
+package project;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one preferred neighbor or optimistic unchoke round
+ */
+@Name("project.ChokeRound")
+@Label("Choke Round")
+@Category({"P2P", "Peer"})
+@Description("Choosing the preferred or optimistically unchoked neighbors")
+public class ChokeRoundEvent extends jdk.jfr.Event {
+
+    @Label("Round")
+    @Description("preferred or optimistic")
+    String round;
+
+    @Label("Preferred Neighbors")
+    int preferredCount;
+
+    @Label("Optimistically Unchoked Peer Id")
+    int optimisticPeerId;
+}
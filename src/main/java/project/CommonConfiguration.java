@@ -15,6 +15,30 @@ public class CommonConfiguration {
     public int filesize;
     public int piecesize;
 
+    /* Optional Configuration Data - keep defaults if absent */
+    public int inboundBufferSize; // Max bytes received but not yet handled, across all neighbors
+    // Rate limits in bytes per second; 0 means unlimited
+    public long maxUploadRate; // Across all neighbors
+    public long maxDownloadRate; // Across all neighbors
+    public long maxNeighborUploadRate; // To each neighbor
+    public long maxNeighborDownloadRate; // From each neighbor
+    public boolean logFlushOnShutdown; // Whether queued log lines are written out when the peer shuts down
+    public boolean textLog; // Whether to write log_peer_[id].log
+    public boolean eventJournal; // Whether to also write the binary journal_peer_[id].bin
+    public boolean pieceTrace; // Whether to write trace_peer_[id].csv with the stages of every downloaded piece
+    public int metricsPort; // Local port of the Prometheus metrics endpoint; 0 disables it
+    public int requestTimeout; // Milliseconds to wait for a requested piece before asking other neighbors for it; 0 waits forever
+    public int keepAliveInterval; // Milliseconds between pings to each neighbor; 0 disables pings and idle detection
+    public int idleTimeout; // Milliseconds of silence before a connection is dropped, or of disconnection before a neighbor is given up on
+    public boolean advertiseCapabilities; // Whether to advertise protocol extensions in the handshake; peers without them reject it
+    public int haveBatchInterval; // Milliseconds to collect Haves for a neighbor before announcing them in one frame; 0 sends each at once
+
+    public static final int DEFAULT_INBOUND_BUFFER_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30_000;
+    public static final int DEFAULT_KEEP_ALIVE_INTERVAL = 10_000;
+    public static final int DEFAULT_IDLE_TIMEOUT = 60_000;
+    public static final int DEFAULT_HAVE_BATCH_INTERVAL = 100;
+
     public CommonConfiguration(String configFilePath) {
         this.configFilePath = configFilePath;
         // Populate data with invalid initial values
@@ -24,6 +48,21 @@ public class CommonConfiguration {
         filename = "";
         filesize = -1;
         piecesize = -1;
+        inboundBufferSize = DEFAULT_INBOUND_BUFFER_SIZE;
+        maxUploadRate = 0;
+        maxDownloadRate = 0;
+        maxNeighborUploadRate = 0;
+        maxNeighborDownloadRate = 0;
+        logFlushOnShutdown = true;
+        textLog = true;
+        eventJournal = false;
+        pieceTrace = false;
+        metricsPort = 0;
+        requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+        idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        haveBatchInterval = DEFAULT_HAVE_BATCH_INTERVAL;
+        advertiseCapabilities = false;
     }
 
     /* Load the configuration properties */
@@ -74,6 +113,51 @@ public class CommonConfiguration {
                 case "PieceSize":
                     piecesize = Integer.parseInt(propValue);
                     break;
+                case "InboundBufferSize":
+                    inboundBufferSize = Integer.parseInt(propValue);
+                    break;
+                case "MaxUploadRate":
+                    maxUploadRate = Long.parseLong(propValue);
+                    break;
+                case "MaxDownloadRate":
+                    maxDownloadRate = Long.parseLong(propValue);
+                    break;
+                case "MaxNeighborUploadRate":
+                    maxNeighborUploadRate = Long.parseLong(propValue);
+                    break;
+                case "MaxNeighborDownloadRate":
+                    maxNeighborDownloadRate = Long.parseLong(propValue);
+                    break;
+                case "LogFlushOnShutdown":
+                    logFlushOnShutdown = (Integer.parseInt(propValue) == 1);
+                    break;
+                case "TextLog":
+                    textLog = (Integer.parseInt(propValue) == 1);
+                    break;
+                case "EventJournal":
+                    eventJournal = (Integer.parseInt(propValue) == 1);
+                    break;
+                case "PieceTrace":
+                    pieceTrace = (Integer.parseInt(propValue) == 1);
+                    break;
+                case "MetricsPort":
+                    metricsPort = Integer.parseInt(propValue);
+                    break;
+                case "RequestTimeout":
+                    requestTimeout = Integer.parseInt(propValue);
+                    break;
+                case "KeepAliveInterval":
+                    keepAliveInterval = Integer.parseInt(propValue);
+                    break;
+                case "IdleTimeout":
+                    idleTimeout = Integer.parseInt(propValue);
+                    break;
+                case "AdvertiseCapabilities":
+                    advertiseCapabilities = (Integer.parseInt(propValue) == 1);
+                    break;
+                case "HaveBatchInterval":
+                    haveBatchInterval = Integer.parseInt(propValue);
+                    break;
                 default:
                     throw new IllegalArgumentException(
                             String.format("Invalid property (%s) in common configuration file (%s)", propName, configFilePath));
@@ -0,0 +1,43 @@
+package project;
+
+/**
+ * Local event, never sent over the wire: posted to the Peer's
+ * queue by a Server whose connection dropped, so the loss is
+ * handled in order with the messages received before it.
+ */
+public class ConnectionLostMessage extends Message {
+
+    // Type byte outside the protocol's range; MessageFactory never decodes it
+    static final byte TYPE = -1;
+
+    private final Server server;
+
+    /**
+     * @param peer - the neighbor whose connection dropped
+     * @param server - the Server of the dropped connection, so a
+     *                 loss reported after a reconnection can be ignored
+     */
+    public ConnectionLostMessage(PeerConfiguration peer, Server server) {
+        this.peer = peer;
+        this.server = server;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        return ""; // No payload
+    }
+
+    @Override
+    protected int getLength() {
+        return 5; // 4 length bytes + 1 type byte
+    }
+}
@@ -0,0 +1,66 @@
+package project;
+
+import java.util.Arrays;
+
+/**
+ * A message serialized once, to be queued on the Servers of many
+ * neighbors, such as a Have broadcast or a seed's bitfield. Every
+ * Server writes the same frame bytes, so a broadcast costs one
+ * encoding however many neighbors it goes to.
+ * Immutable, and not addressed to any neighbor (getPeer() is
+ * null); only for sending, never handled by a Peer.
+ */
+public final class EncodedFrame extends Message {
+
+    private final byte[] frame;
+
+    /**
+     * @param message - the message to encode; its peer is not part of the frame
+     */
+    public EncodedFrame(Message message) {
+        this.frame = message.serializeToBytes();
+    }
+
+    /**
+     * @return the frame bytes, shared by every Server it was queued on; must not be modified
+     */
+    @Override
+    public byte[] serializeToBytes() {
+        return frame;
+    }
+
+    @Override
+    public String serialize() {
+        return StringEncoder.bytesToString(frame);
+    }
+
+    @Override
+    protected byte getType() {
+        return frame[4];
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        return StringEncoder.bytesToString(Arrays.copyOfRange(frame, 5, frame.length));
+    }
+
+    @Override
+    protected int getLength() {
+        return frame.length;
+    }
+
+    @Override
+    public void setPeer(PeerConfiguration peer) {
+        throw new UnsupportedOperationException("An EncodedFrame is not addressed to a peer");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof EncodedFrame && Arrays.equals(frame, ((EncodedFrame) obj).frame);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(frame);
+    }
+}
@@ -0,0 +1,148 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Compact binary copy of the events written to the text log.
+ * The journal is a header followed by fixed-size records, appended
+ * sequentially through a direct buffer:
+ *
+ *   offset 0  long  timestamp (ms since epoch)
+ *   offset 8  int   event type (see constants)
+ *   offset 12 int   id of this peer
+ *   offset 16 int   id of the other peer, or -1
+ *   offset 20 int   piece index, or -1
+ *   offset 24 int   extra value (piece count, or number of neighbor records which follow)
+ *   offset 28 int   reserved
+ *
+ * A CHANGE_NEIGHBORS record is followed by one PREFERRED_NEIGHBOR
+ * record per preferred neighbor. JournalFormatter renders a
+ * journal back into the text log format.
+ */
+public class EventJournal {
+
+    public static final int RECORD_SIZE = 32;
+    static final long MAGIC = 0x50325052_4A524E31L; // "P2PRJRN1"
+    private static final int BUFFER_RECORDS = 2048;
+
+    /* Event types */
+    public static final int TCP = 1;
+    public static final int CHANGE_NEIGHBORS = 2;
+    public static final int PREFERRED_NEIGHBOR = 3;
+    public static final int OPTIMISTIC = 4;
+    public static final int UNCHOKED = 5;
+    public static final int CHOKED = 6;
+    public static final int INTERESTED = 7;
+    public static final int NOT_INTERESTED = 8;
+    public static final int HAVE = 9;
+    public static final int DOWNLOAD = 10;
+    public static final int COMPLETE = 11;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS);
+    private final String filepath;
+    private boolean closed = false;
+
+    /**
+     * Create (or truncate) the journal for a peer
+     * @param id - the id of the peer whose events are journaled
+     * @throws IOException if the file can't be created
+     */
+    public EventJournal(int id) throws IOException {
+        this.filepath = "journal_peer_" + id + ".bin";
+        this.channel = FileChannel.open(Path.of(filepath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // Header record: magic number and the record size
+        buffer.putLong(MAGIC).putInt(RECORD_SIZE).putInt(0).putLong(0).putLong(0);
+    }
+
+    public String getFilePath() {
+        return filepath;
+    }
+
+    public void record(int type, int selfId, int peerId) {
+        record(type, selfId, peerId, -1, 0);
+    }
+
+    public synchronized void record(int type, int selfId, int peerId, int pieceIndex, int extra) {
+        if (closed) {
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        put(System.currentTimeMillis(), type, selfId, peerId, pieceIndex, extra);
+    }
+
+    // Neighbor lists are variable length, so they are split over several records
+    public synchronized void recordChangeNeighbors(int selfId, List<Integer> preferred) {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (buffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        put(now, CHANGE_NEIGHBORS, selfId, -1, -1, preferred.size());
+        for (Integer neighbor : preferred) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                writeBuffer();
+            }
+            put(now, PREFERRED_NEIGHBOR, selfId, neighbor, -1, 0);
+        }
+    }
+
+    // Must hold lock
+    private void put(long time, int type, int selfId, int peerId, int pieceIndex, int extra) {
+        buffer.putLong(time)
+                .putInt(type)
+                .putInt(selfId)
+                .putInt(peerId)
+                .putInt(pieceIndex)
+                .putInt(extra)
+                .putInt(0);
+    }
+
+    // Must hold lock
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("IOException while writing event journal " + filepath);
+            e.printStackTrace();
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write out any buffered records
+     */
+    public synchronized void flush() {
+        if (!closed) {
+            writeBuffer();
+        }
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        writeBuffer();
+        closed = true;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.out.println("Event journal " + filepath + " could not close properly");
+        }
+    }
+}
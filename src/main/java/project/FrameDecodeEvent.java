@@ -0,0 +1,31 @@
+package project;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for decoding one frame in MessageFactory.
+ * Like all JFR events, it costs nothing unless a recording
+ * with it enabled is running.
+ */
+@Name("project.FrameDecode")
+@Label("Frame Decode")
+@Category({"P2P", "Codec"})
+@Description("Decoding of a received frame into a Message")
+public class FrameDecodeEvent extends jdk.jfr.Event {
+
+    @Label("Peer Id")
+    int peerId;
+
+    @Label("Message Type")
+    int messageType;
+
+    @Label("Piece Index")
+    @Description("Index of the piece for have, request and piece messages; otherwise -1")
+    int pieceIndex;
+
+    @Label("Frame Length")
+    int length;
+}
@@ -0,0 +1,34 @@
+package project;
+
+/**
+ * Bitfield of a peer which owns every piece, without the bitmap.
+ * Needs Capabilities.FAST_BITFIELD.
+ */
+public class HaveAllMessage extends BitfieldMessage {
+
+    static final byte TYPE = 10;
+
+    public HaveAllMessage(PeerConfiguration peer) {
+        super(peer);
+    }
+
+    @Override
+    boolean hasPiece(int index) {
+        return true;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        return ""; // No payload
+    }
+
+    @Override
+    protected int getLength() {
+        return 5; // 4 length bytes + 1 type byte
+    }
+}
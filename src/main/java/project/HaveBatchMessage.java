@@ -0,0 +1,74 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several HaveMessages in one frame: the pieces the sender got
+ * since its last announcement to this neighbor.
+ * Needs Capabilities.BATCH_HAVE.
+ */
+public class HaveBatchMessage extends Message {
+
+    static final byte TYPE = 13;
+
+    // Most indices in one frame, so a batch never exceeds the receiver's frame limit however small the pieces
+    static final int MAX_INDICES = 1024;
+    static final int MAX_FRAME_LENGTH = 5 + 4 * MAX_INDICES;
+
+    private final int[] indices;
+
+    /**
+     * @param indices - indices of the announced pieces
+     * @param peer - the sender or intended receiver (context dependent)
+     */
+    public HaveBatchMessage(int[] indices, PeerConfiguration peer) {
+        this.indices = indices;
+        this.peer = peer;
+    }
+
+    /**
+     * The frames announcing some pieces: a HaveMessage for a single
+     * piece, else HaveBatchMessages of at most MAX_INDICES each
+     * @param indices - indices of the announced pieces
+     * @param peer - the intended receiver
+     * @return the frames to send, in order
+     */
+    static List<Message> frames(int[] indices, PeerConfiguration peer) {
+        List<Message> frames = new ArrayList<>();
+        if (indices.length == 1) {
+            frames.add(new HaveMessage(indices[0], peer));
+            return frames;
+        }
+        for (int from = 0; from < indices.length; from += MAX_INDICES) {
+            int to = Math.min(from + MAX_INDICES, indices.length);
+            frames.add(new HaveBatchMessage(Arrays.copyOfRange(indices, from, to), peer));
+        }
+        return frames;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(4 * indices.length);
+        for (int index : indices) {
+            buf.putInt(index);
+        }
+        return StringEncoder.bytesToString(buf.array());
+    }
+
+    @Override
+    protected int getLength() {
+        return 5 + 4 * indices.length; // 4 length bytes + 1 type byte + 4 bytes per index
+    }
+}
@@ -0,0 +1,148 @@
+package project;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the
+ * style of HdrHistogram. Values below 32 get one bucket each;
+ * above that, every power of two is split into 32 equal buckets,
+ * so any recorded value is known to within about 3%.
+ * Recording is a few shifts and one atomic increment.
+ * Values are nanoseconds by convention.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a value; negative values are recorded as 0
+     * @param value - the value, normally a duration in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    // Record the time elapsed since startNanos (from System.nanoTime)
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+        int mantissa = (int) (value >>> (exp - SUB_BITS)); // in [SUB_COUNT, 2 * SUB_COUNT)
+        return (exp - SUB_BITS + 1) * SUB_COUNT + (mantissa - SUB_COUNT);
+    }
+
+    // Smallest value which falls in the given bucket
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long mantissa = bucket % SUB_COUNT + SUB_COUNT;
+        return mantissa << (exp - SUB_BITS);
+    }
+
+    // Largest value which falls in the given bucket
+    static long highestValueOf(int bucket) {
+        if (bucket + 1 >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValueOf(bucket + 1) - 1;
+    }
+
+    /**
+     * Copy the current state. Concurrent records may or may not
+     * be included, but the copy itself never changes.
+     * @return an immutable snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Immutable copy of a Histogram
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile - in [0, 100]
+         * @return the highest value of the bucket holding the given percentile, or 0 if empty
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Number of recorded values less than or equal to the given bound,
+         * to within the bucket precision. Used for cumulative exports.
+         */
+        public long getCountAtOrBelow(long bound) {
+            long total = 0;
+            for (int i = 0; i < counts.length && highestValueOf(i) <= bound; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package project;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Byte budget shared by the input readers of every
+ * Server owned by a Peer. A reader reserves the length
+ * of a frame before reading its body, and the Peer gives
+ * the bytes back once the decoded message is handled.
+ * When the budget is exhausted readers block, stop
+ * draining their sockets, and TCP flow control pushes
+ * back on the senders.
+ */
+public class InboundBudget {
+
+    private final int capacity;
+    private final Semaphore available;
+
+    /**
+     * @param capacity - maximum number of inbound bytes which
+     *                 may be read but not yet handled, across
+     *                 all connections
+     */
+    public InboundBudget(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Inbound budget must be positive");
+        }
+        this.capacity = capacity;
+        this.available = new Semaphore(capacity, true); // fair, so one busy connection can't starve the others
+    }
+
+    /**
+     * Reserve bytes for a frame, blocking until they are available
+     * @param bytes - length of the frame
+     * @throws InterruptedException if the reader is interrupted while waiting
+     * @throws IllegalArgumentException if the frame could never fit in the budget
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (bytes > capacity) {
+            throw new IllegalArgumentException(
+                    String.format("Frame of %d bytes exceeds inbound budget of %d bytes", bytes, capacity));
+        }
+        available.acquire(bytes);
+    }
+
+    public void release(int bytes) {
+        if (bytes > 0) {
+            available.release(bytes);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getAvailable() {
+        return available.availablePermits();
+    }
+}
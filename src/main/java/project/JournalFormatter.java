@@ -0,0 +1,137 @@
+package project;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool which renders an EventJournal into
+ * the text format of log_peer_[id].log.
+ * Usage: java project.JournalFormatter journal_peer_[id].bin [output file]
+ * The output defaults to standard out.
+ */
+public class JournalFormatter {
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java project.JournalFormatter <journal file> [output file]");
+            return;
+        }
+        try {
+            Writer out;
+            if (args.length == 2) {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1])), 64 * 1024);
+            }
+            else {
+                out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+            }
+            format(Path.of(args[0]), out);
+            out.close();
+        }
+        catch (IOException e) {
+            System.out.println("Could not format journal " + args[0]);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Render every record of a journal as a log line
+     * @param journal - path of the journal file
+     * @param out - destination of the log lines
+     * @throws IOException if the journal can't be read or is not a journal
+     */
+    public static void format(Path journal, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(EventJournal.RECORD_SIZE * 4096);
+            boolean headerRead = false;
+            List<Integer> neighbors = new ArrayList<>();
+            int neighborsExpected = 0;
+            long neighborsTime = 0;
+            int neighborsSelf = 0;
+
+            while (channel.read(buffer) != -1 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < EventJournal.RECORD_SIZE) {
+                    break; // Truncated final record, e.g. the peer crashed mid-write
+                }
+                while (buffer.remaining() >= EventJournal.RECORD_SIZE) {
+                    if (!headerRead) {
+                        if (buffer.getLong() != EventJournal.MAGIC || buffer.getInt() != EventJournal.RECORD_SIZE) {
+                            throw new IOException(journal + " is not an event journal");
+                        }
+                        buffer.position(buffer.position() + EventJournal.RECORD_SIZE - 12);
+                        headerRead = true;
+                        continue;
+                    }
+                    long time = buffer.getLong();
+                    int type = buffer.getInt();
+                    int self = buffer.getInt();
+                    int peer = buffer.getInt();
+                    int piece = buffer.getInt();
+                    int extra = buffer.getInt();
+                    buffer.getInt(); // reserved
+
+                    if (type == EventJournal.CHANGE_NEIGHBORS) {
+                        neighbors.clear();
+                        neighborsExpected = extra;
+                        neighborsTime = time;
+                        neighborsSelf = self;
+                        if (neighborsExpected == 0) {
+                            writeLine(out, time, MessageLogger.formatChangeNeighbors(self, neighbors));
+                        }
+                    }
+                    else if (type == EventJournal.PREFERRED_NEIGHBOR) {
+                        neighbors.add(peer);
+                        if (neighbors.size() == neighborsExpected) {
+                            writeLine(out, neighborsTime, MessageLogger.formatChangeNeighbors(neighborsSelf, neighbors));
+                        }
+                    }
+                    else {
+                        writeLine(out, time, formatRecord(type, self, peer, piece, extra));
+                    }
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    private static String formatRecord(int type, int self, int peer, int piece, int extra) throws IOException {
+        switch (type) {
+            case EventJournal.TCP:
+                return MessageLogger.formatTCP(self, peer);
+            case EventJournal.OPTIMISTIC:
+                return MessageLogger.formatOptimistic(self, peer);
+            case EventJournal.UNCHOKED:
+                return MessageLogger.formatUnchoked(self, peer);
+            case EventJournal.CHOKED:
+                return MessageLogger.formatChoked(self, peer);
+            case EventJournal.INTERESTED:
+                return MessageLogger.formatInterested(self, peer);
+            case EventJournal.NOT_INTERESTED:
+                return MessageLogger.formatNotInterested(self, peer);
+            case EventJournal.HAVE:
+                return MessageLogger.formatHaveMessage(self, peer, piece);
+            case EventJournal.DOWNLOAD:
+                return MessageLogger.formatDownload(self, peer, piece, extra);
+            case EventJournal.COMPLETE:
+                return MessageLogger.formatComplete(self);
+            default:
+                throw new IOException(String.format("Unexpected event type (%d) in journal", type));
+        }
+    }
+
+    private static void writeLine(Writer out, long time, String text) throws IOException {
+        out.write(MessageLogger.formatTimestamp(time));
+        out.write(' ');
+        out.write(text);
+        out.write(System.lineSeparator());
+    }
+}
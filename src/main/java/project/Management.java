@@ -0,0 +1,268 @@
+package project;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Registers a Peer and its Servers with the platform MBean
+ * server, so they can be inspected and tuned with standard
+ * JVM tools (jconsole, VisualVM, jmxterm...). Registration
+ * failures are reported and otherwise ignored; management is
+ * never required for the Peer to run.
+ */
+public class Management {
+
+    private static final String DOMAIN = "project";
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public void registerPeer(Peer peer, int id) {
+        register(new PeerBean(peer), DOMAIN + ":type=Peer,id=" + id);
+    }
+
+    public void registerServer(Server server, int selfId) {
+        register(new ServerBean(server),
+                DOMAIN + ":type=Server,peer=" + selfId + ",target=" + server.getTarget().getId());
+    }
+
+    private synchronized void register(Object bean, String name) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (mbs.isRegistered(objectName)) {
+                mbs.unregisterMBean(objectName); // e.g. a reconnected Server
+            }
+            mbs.registerMBean(bean, objectName);
+            registered.add(objectName);
+        }
+        catch (JMException e) {
+            System.out.println("Could not register MBean " + name);
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void unregisterAll() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                if (mbs.isRegistered(name)) {
+                    mbs.unregisterMBean(name);
+                }
+            }
+            catch (JMException e) {
+                System.out.println("Could not unregister MBean " + name);
+            }
+        }
+        registered.clear();
+    }
+
+    private static class PeerBean implements PeerMXBean {
+        private final Peer peer;
+
+        PeerBean(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public int getId() {
+            return peer.getSelf().getId();
+        }
+
+        @Override
+        public int getPiecesOwned() {
+            return Peer.countPieces(peer.bitfields.get(getId()));
+        }
+
+        @Override
+        public int getPiecesTotal() {
+            return peer.bitfields.get(getId()).length;
+        }
+
+        @Override
+        public int[] getPreferredNeighbors() {
+            List<Integer> ids = new ArrayList<>();
+            for (Map.Entry<Integer, Boolean> entry : peer.preferred.entrySet()) {
+                if (entry.getValue()) {
+                    ids.add(entry.getKey());
+                }
+            }
+            return toSortedArray(ids);
+        }
+
+        @Override
+        public int getOptimisticallyUnchokedNeighbor() {
+            Integer id = peer.optimisticallyUnchokedPeer.get();
+            return Objects.requireNonNullElse(id, -1);
+        }
+
+        @Override
+        public int[] getChokedBy() {
+            return toSortedArray(new ArrayList<>(peer.beingChokedBy));
+        }
+
+        @Override
+        public Map<Integer, Integer> getPendingRequests() {
+            return new TreeMap<>(peer.pendingRequests);
+        }
+
+        @Override
+        public int getMessageQueueDepth() {
+            return peer.getMessageQueueDepth();
+        }
+
+        @Override
+        public int getUploadQueueDepth() {
+            return peer.getUploadQueueDepth();
+        }
+
+        @Override
+        public int getNumberPreferredNeighbors() {
+            return peer.getNumberPreferredNeighbors();
+        }
+
+        @Override
+        public void setNumberPreferredNeighbors(int numberPreferredNeighbors) {
+            peer.setNumberPreferredNeighbors(numberPreferredNeighbors);
+        }
+
+        @Override
+        public int getUnchokingInterval() {
+            return peer.getUnchokingInterval();
+        }
+
+        @Override
+        public void setUnchokingInterval(int seconds) {
+            peer.setUnchokingInterval(seconds);
+        }
+
+        @Override
+        public int getOptimisticUnchokingInterval() {
+            return peer.getOptimisticUnchokingInterval();
+        }
+
+        @Override
+        public void setOptimisticUnchokingInterval(int seconds) {
+            peer.setOptimisticUnchokingInterval(seconds);
+        }
+
+        @Override
+        public long getGlobalUploadRate() {
+            return peer.getGlobalUploadLimiter().getRate();
+        }
+
+        @Override
+        public long getGlobalDownloadRate() {
+            return peer.getGlobalDownloadLimiter().getRate();
+        }
+
+        @Override
+        public void setUploadRateLimits(long globalRate, long neighborRate) {
+            peer.setUploadRateLimits(globalRate, neighborRate);
+        }
+
+        @Override
+        public void setDownloadRateLimits(long globalRate, long neighborRate) {
+            peer.setDownloadRateLimits(globalRate, neighborRate);
+        }
+
+        private static int[] toSortedArray(List<Integer> ids) {
+            return ids.stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+    }
+
+    private static class ServerBean implements ServerMXBean {
+        private final Server server;
+
+        ServerBean(Server server) {
+            this.server = server;
+        }
+
+        @Override
+        public int getTargetId() {
+            return server.getTarget().getId();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return server.isConnected();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return server.getBytesSent();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return server.getBytesReceived();
+        }
+
+        @Override
+        public int getQueuedControlFrames() {
+            return server.getQueuedControlFrames();
+        }
+
+        @Override
+        public int getQueuedPieceFrames() {
+            return server.getQueuedPieceFrames();
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return server.getQueuedBytes();
+        }
+
+        @Override
+        public long getHandshakeMillis() {
+            return server.getHandshakeNanos() / 1_000_000L;
+        }
+
+        @Override
+        public long getConnectedAtMillis() {
+            return server.getConnectedAtMillis();
+        }
+
+        @Override
+        public long getSmoothedRttMicros() {
+            long rtt = server.getSmoothedRttNanos();
+            return rtt < 0 ? -1 : rtt / 1_000L;
+        }
+
+        @Override
+        public long getIdleMillis() {
+            return server.getIdleNanos() / 1_000_000L;
+        }
+
+        @Override
+        public String getCapabilities() {
+            return Capabilities.describe(server.getCapabilities());
+        }
+
+        @Override
+        public long getUploadRate() {
+            return server.getUploadLimiter().getRate();
+        }
+
+        @Override
+        public void setUploadRate(long bytesPerSecond) {
+            server.getUploadLimiter().setRate(bytesPerSecond);
+        }
+
+        @Override
+        public long getDownloadRate() {
+            return server.getDownloadLimiter().getRate();
+        }
+
+        @Override
+        public void setDownloadRate(long bytesPerSecond) {
+            server.getDownloadLimiter().setRate(bytesPerSecond);
+        }
+    }
+}
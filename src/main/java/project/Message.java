@@ -17,6 +17,19 @@ public abstract class Message {
     // received from
     protected PeerConfiguration peer;
 
+    // Bytes of the receiving Peer's InboundBudget held by this
+    // message until it is handled; 0 for locally created messages
+    private int chargedBytes;
+
+    // System.nanoTime() when the message was put on the receiving Peer's queue
+    private long enqueuedNanos;
+
+    // System.nanoTime() when the frame's first bytes were read, when it was
+    // decoded, and when the Peer took it off its queue; see PieceTracer
+    private long receivedNanos;
+    private long decodedNanos;
+    private long dequeuedNanos;
+
     /**
      * Returns the string capturing the bytes
      * of the message; i.e. serializes the message
@@ -75,6 +88,46 @@ public abstract class Message {
         this.peer = peer;
     }
 
+    int getChargedBytes() {
+        return chargedBytes;
+    }
+
+    void setChargedBytes(int chargedBytes) {
+        this.chargedBytes = chargedBytes;
+    }
+
+    long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    void setEnqueuedNanos(long enqueuedNanos) {
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    long getDecodedNanos() {
+        return decodedNanos;
+    }
+
+    void setDecodedNanos(long decodedNanos) {
+        this.decodedNanos = decodedNanos;
+    }
+
+    long getDequeuedNanos() {
+        return dequeuedNanos;
+    }
+
+    void setDequeuedNanos(long dequeuedNanos) {
+        this.dequeuedNanos = dequeuedNanos;
+    }
+
     /**
      * This is simple implementation of equals
      * for Messages. Subclasses may need to
@@ -106,6 +159,24 @@ public abstract class Message {
         return Objects.hash(getPeer().hashCode(), serialize().hashCode());
     }
 
+    /**
+     * The piece a message refers to, for the JFR events
+     * @param msg - any message
+     * @return the index of the piece for have, request and piece messages; otherwise -1
+     */
+    static int pieceIndexOf(Message msg) {
+        if (msg instanceof HaveMessage) {
+            return ((HaveMessage) msg).getIndex();
+        }
+        else if (msg instanceof RequestMessage) {
+            return ((RequestMessage) msg).getIndex();
+        }
+        else if (msg instanceof PieceMessage) {
+            return ((PieceMessage) msg).getIndex();
+        }
+        return -1;
+    }
+
     /**
      * Helper method to see information about the
      * Message during testing.
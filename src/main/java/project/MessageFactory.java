@@ -8,7 +8,28 @@ import java.util.List;
 
 public class MessageFactory {
 
+    /**
+     * Decode a received frame into a Message, recording a FrameDecodeEvent
+     * @param rawMsg - whole frame, including the length and type
+     * @param peer - peer the frame was received from
+     * @return the decoded message
+     * @throws IllegalArgumentException if the frame is malformed
+     */
     public Message makeMessage(String rawMsg, PeerConfiguration peer) {
+        FrameDecodeEvent event = new FrameDecodeEvent();
+        event.begin();
+        Message msg = decode(rawMsg, peer);
+        if (event.shouldCommit()) {
+            event.peerId = peer.getId();
+            event.messageType = msg.getType();
+            event.pieceIndex = Message.pieceIndexOf(msg);
+            event.length = rawMsg.length();
+            event.commit();
+        }
+        return msg;
+    }
+
+    private Message decode(String rawMsg, PeerConfiguration peer) {
         // TODO - Verify this is the correct charset with tests
         List<Byte> bytes = getByteList(rawMsg);
 
@@ -81,6 +102,49 @@ public class MessageFactory {
                     msg = new PieceMessage(index, piece, peer);
                 }
                 break;
+            case PingMessage.TYPE:
+            case PongMessage.TYPE:
+                if (payload.size() != 8) {
+                    throw new IllegalArgumentException("Invalid payload size for PingMessage or PongMessage");
+                }
+                else {
+                    long timestamp = longFromBytes(payload);
+                    msg = type == PingMessage.TYPE ? new PingMessage(timestamp, peer) : new PongMessage(timestamp, peer);
+                }
+                break;
+            case HaveAllMessage.TYPE:
+            case HaveNoneMessage.TYPE:
+                if (!payload.isEmpty()) {
+                    throw new IllegalArgumentException("Unexpected payload in HaveAllMessage or HaveNoneMessage");
+                }
+                else {
+                    msg = type == HaveAllMessage.TYPE ? new HaveAllMessage(peer) : new HaveNoneMessage(peer);
+                }
+                break;
+            case RunLengthBitfieldMessage.TYPE:
+                if (payload.isEmpty()) {
+                    throw new IllegalArgumentException("Empty payload in RunLengthBitfieldMessage");
+                }
+                else {
+                    byte[] runs = new byte[payload.size()];
+                    for (int i = 0; i < payload.size(); i++) {
+                        runs[i] = payload.get(i);
+                    }
+                    msg = RunLengthBitfieldMessage.fromPayload(runs, peer);
+                }
+                break;
+            case HaveBatchMessage.TYPE:
+                if (payload.isEmpty() || payload.size() % 4 != 0) {
+                    throw new IllegalArgumentException("Invalid payload size for HaveBatchMessage");
+                }
+                else {
+                    int[] indices = new int[payload.size() / 4];
+                    for (int i = 0; i < indices.length; i++) {
+                        indices[i] = intFromBytes(payload.subList(4 * i, 4 * i + 4));
+                    }
+                    msg = new HaveBatchMessage(indices, peer);
+                }
+                break;
             default:
                 throw new IllegalArgumentException(String.format("Unexpected message type (%d) in raw message", type));
         }
@@ -110,4 +174,13 @@ public class MessageFactory {
         return buf.getInt();
     }
 
+    // As intFromBytes, for the 8 bytes of a long
+    private long longFromBytes(List<Byte> byteList) {
+        byte[] bytes = new byte[byteList.size()];
+        for (int i = 0; i < byteList.size(); i++) {
+            bytes[i] = byteList.get(i);
+        }
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
 }
@@ -0,0 +1,26 @@
+package project;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for handling one message in Peer.handleMessage
+ */
+@Name("project.MessageHandled")
+@Label("Message Handled")
+@Category({"P2P", "Peer"})
+@Description("Handling of a received message by the Peer message loop")
+public class MessageHandledEvent extends jdk.jfr.Event {
+
+    @Label("Peer Id")
+    int peerId;
+
+    @Label("Message Type")
+    String messageType;
+
+    @Label("Piece Index")
+    @Description("Index of the piece for have, request and piece messages; otherwise -1")
+    int pieceIndex;
+}
@@ -1,52 +1,292 @@
 package project;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Writes the protocol event log (log_peer_[id].log).
+ * Callers only format the event text and hand it to a
+ * lock-free ring buffer along with the current time; a
+ * background thread adds the timestamps and writes the
+ * lines to the file in batches, flushing once per batch.
+ */
 public class MessageLogger {
 
-    private Logger log;
-    private PrintWriter f;
+    private static final int RING_CAPACITY = 1 << 14; // must be a power of two
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final RingBuffer ring = new RingBuffer(RING_CAPACITY);
+    private final boolean flushOnShutdown; // whether close() writes out everything still queued
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private final LongAdder droppedLines = new LongAdder(); // lines the writer could no longer take
+    private Writer f;
     private String filepath;
 
+    private final boolean textLog; // whether to write the text log at all
+    private final EventJournal journal; // optional binary copy of every event; null if disabled
+
     public MessageLogger(int id) {
-        this.log = Logger.getLogger("log_peer_" + id);
-        this.filepath = "log_peer_" + id + ".log";
+        this(id, true);
+    }
+
+    /**
+     * @param id - the id of the peer whose events are logged
+     * @param flushOnShutdown - if true, close() writes all queued lines before
+     *                        returning; if false, queued lines are dropped
+     */
+    public MessageLogger(int id, boolean flushOnShutdown) {
+        this(id, flushOnShutdown, true, null);
+    }
+
+    /**
+     * @param id - the id of the peer whose events are logged
+     * @param flushOnShutdown - if true, close() writes all queued lines before
+     *                        returning; if false, queued lines are dropped
+     * @param textLog - whether to write log_peer_[id].log
+     * @param journal - binary journal which also receives every event, or null
+     */
+    public MessageLogger(int id, boolean flushOnShutdown, boolean textLog, EventJournal journal) {
+        this("log_peer_" + id + ".log", textLog ? open("log_peer_" + id + ".log") : null,
+                "logger-" + id, flushOnShutdown, textLog, journal);
+    }
+
+    /**
+     * Writes the text log to out instead of a file; for tests
+     * @param out - receives the log lines
+     * @param flushOnShutdown - as for the other constructors
+     */
+    MessageLogger(Writer out, boolean flushOnShutdown) {
+        this("(writer)", out, "logger-writer", flushOnShutdown, true, null);
+    }
+
+    private MessageLogger(String filepath, Writer out, String threadName,
+                          boolean flushOnShutdown, boolean textLog, EventJournal journal) {
+        this.filepath = filepath;
+        this.f = out;
+        this.flushOnShutdown = flushOnShutdown;
+        this.textLog = textLog;
+        this.journal = journal;
+        if (!textLog) {
+            writer = null;
+            return;
+        }
+        writer = new Thread(this::drain, threadName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static Writer open(String filepath) {
         try {
-            FileOutputStream file = new FileOutputStream(this.filepath);
-            f = new PrintWriter(file);
+            FileOutputStream file = new FileOutputStream(filepath);
+            return new BufferedWriter(new OutputStreamWriter(file), 64 * 1024);
         }
         catch (FileNotFoundException e) {
-            System.out.println("Logger could not be opened to " + this.filepath);
-            f = null;
+            System.out.println("Logger could not be opened to " + filepath);
+            return null;
         }
     }
 
     public void writeMessage(String message) {
-        String log = getTimeStampString() + " " + message;
-        this.log.info(log);
-        if (f != null) {
-            f.println(log);
-            f.flush();
+        if (f == null) {
+            System.out.println("Skipped writing log to " + filepath + " because the log file could not be opened");
+            return;
+        }
+        if (closed) {
+            return;
         }
-        else {
-            System.out.println("Skipped writing log to " + filepath + " because PrintWriter was null");
+        long now = System.currentTimeMillis();
+        while (!ring.offer(now, message)) {
+            // Full - wait for the writer instead of dropping required log lines, unless it has
+            // stopped (closed, or failed writing) and will never make room; the caller may be
+            // the Peer's message loop, which must not hang on the log disk
+            if (closed || !writer.isAlive()) {
+                droppedLines.increment();
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
         }
     }
 
+    // Lines dropped because the ring was full and the writer had stopped
+    public long getDroppedLines() {
+        return droppedLines.sum();
+    }
+
     public static String getTimeStampString() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date());
+        return TIMESTAMP_FORMAT.format(LocalDateTime.now());
+    }
+
+    /**
+     * Stop the writer thread and close the file. Depending on
+     * flushOnShutdown, lines still queued are either written or dropped.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (journal != null) {
+            journal.close();
+        }
+        if (writer == null) {
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            System.out.println("Interrupted while closing logger for " + filepath);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Body of the writer thread
+    private void drain() {
+        TimestampCache timestamps = new TimestampCache();
+        try {
+            while (true) {
+                int written = writeBatch(timestamps);
+                if (written > 0) {
+                    f.flush();
+                }
+                else if (closed) {
+                    break;
+                }
+                else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                if (closed && !flushOnShutdown) {
+                    break;
+                }
+            }
+            if (f != null) {
+                f.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("IOException while writing log to " + filepath);
+            e.printStackTrace();
+        }
+    }
+
+    private int writeBatch(TimestampCache timestamps) throws IOException {
+        int count = 0;
+        while (count < MAX_BATCH && ring.poll()) {
+            f.write(timestamps.format(ring.polledTime));
+            f.write(' ');
+            f.write(ring.polledMessage);
+            f.write(System.lineSeparator());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Formats timestamps, reusing the string while the
+     * time stays within the same second. Writer thread only.
+     */
+    private static class TimestampCache {
+        private long second = Long.MIN_VALUE;
+        private String formatted;
+
+        String format(long millis) {
+            long s = Math.floorDiv(millis, 1000L);
+            if (s != second) {
+                second = s;
+                formatted = formatTimestamp(millis);
+            }
+            return formatted;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring of
+     * (time, message) events. Producers claim a slot with one
+     * CAS and publish it through the slot's sequence number;
+     * no locks are taken on either side.
+     */
+    private static class RingBuffer {
+        private final int mask;
+        private final long[] times;
+        private final String[] messages;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong(0); // next slot to claim
+        private long head = 0; // next slot to read; consumer only
+
+        // Last event taken by poll(); consumer only
+        long polledTime;
+        String polledMessage;
+
+        RingBuffer(int capacity) {
+            this.mask = capacity - 1;
+            this.times = new long[capacity];
+            this.messages = new String[capacity];
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        boolean offer(long time, String message) {
+            while (true) {
+                long pos = tail.get();
+                int slot = (int) (pos & mask);
+                long diff = sequences.get(slot) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        times[slot] = time;
+                        messages[slot] = message;
+                        sequences.set(slot, pos + 1); // publish
+                        return true;
+                    }
+                }
+                else if (diff < 0) {
+                    return false; // full
+                }
+                // else another producer claimed pos; retry
+            }
+        }
+
+        boolean poll() {
+            int slot = (int) (head & mask);
+            if (sequences.get(slot) != head + 1) {
+                return false; // empty, or next slot not yet published
+            }
+            polledTime = times[slot];
+            polledMessage = messages[slot];
+            messages[slot] = null;
+            sequences.set(slot, head + mask + 1); // free the slot for the next lap
+            head++;
+            return true;
+        }
     }
 
     public void logTCP (int selfID, int targetID) {
-        writeMessage("Peer " + selfID + " makes a connection to Peer " + targetID + ".");
+        if (journal != null) {
+            journal.record(EventJournal.TCP, selfID, targetID);
+        }
+        if (textLog) {
+            writeMessage(formatTCP(selfID, targetID));
+        }
     }
 
     public void logChangeNeighbors (int selfID, ConcurrentMap<Integer,Boolean> neighbors) {
@@ -57,49 +297,66 @@ public class MessageLogger {
                 preferred.add(entry.getKey());
             }
         }
-
-        if (preferred.isEmpty()) {
-            writeMessage("Peer " + selfID + " has no preferred neighbors.");
-        }
-        else {
-            StringBuilder neighborList = new StringBuilder();
-            boolean first = true;
-            for (Integer id : preferred) {
-                if (first) {
-                    first = false;
-                }
-                else {
-                    neighborList.append(", ");
-                }
-                neighborList.append(id);
-            }
-
-            writeMessage("Peer " + selfID + " has the preferred neighbors " + neighborList + ".");
+        if (journal != null) {
+            journal.recordChangeNeighbors(selfID, preferred);
+        }
+        if (textLog) {
+            writeMessage(formatChangeNeighbors(selfID, preferred));
         }
     }
 
     public void logOptimistic (int selfID, int unchokedID) {
-        writeMessage("Peer " + selfID + " has the optimistically unchoked neighbor " + unchokedID + ".");
+        if (journal != null) {
+            journal.record(EventJournal.OPTIMISTIC, selfID, unchokedID);
+        }
+        if (textLog) {
+            writeMessage(formatOptimistic(selfID, unchokedID));
+        }
     }
 
     public void logUnchoked (int selfID, int unchokedID) {
-        writeMessage("Peer " + selfID + " is unchoked by " + unchokedID + ".");
+        if (journal != null) {
+            journal.record(EventJournal.UNCHOKED, selfID, unchokedID);
+        }
+        if (textLog) {
+            writeMessage(formatUnchoked(selfID, unchokedID));
+        }
     }
 
     public void logChoked (int selfID, int chokedID) {
-        writeMessage("Peer " + selfID + "is choked by " + chokedID);
+        if (journal != null) {
+            journal.record(EventJournal.CHOKED, selfID, chokedID);
+        }
+        if (textLog) {
+            writeMessage(formatChoked(selfID, chokedID));
+        }
     }
 
     public void logInterested (int selfID, int interestedID) {
-        writeMessage("Peer " + selfID + "received the ‘interested’ message from" + interestedID);
+        if (journal != null) {
+            journal.record(EventJournal.INTERESTED, selfID, interestedID);
+        }
+        if (textLog) {
+            writeMessage(formatInterested(selfID, interestedID));
+        }
     }
 
     public void logNotInterested (int selfID, int notInterestedID) {
-        writeMessage("Peer " + selfID + "received the ‘not interested’ message from" + notInterestedID);
+        if (journal != null) {
+            journal.record(EventJournal.NOT_INTERESTED, selfID, notInterestedID);
+        }
+        if (textLog) {
+            writeMessage(formatNotInterested(selfID, notInterestedID));
+        }
     }
 
     public void logHaveMessage(int selfID, int senderID, int pieceIndex) {
-        writeMessage("Peer " + selfID + " received the 'have' message from " + senderID + " for the piece " + pieceIndex);
+        if (journal != null) {
+            journal.record(EventJournal.HAVE, selfID, senderID, pieceIndex, 0);
+        }
+        if (textLog) {
+            writeMessage(formatHaveMessage(selfID, senderID, pieceIndex));
+        }
     }
 
     public void logDownload(int selfId, int peerId, int pieceIndex, boolean[] selfBitfield) {
@@ -109,12 +366,85 @@ public class MessageLogger {
                 count++;
             }
         }
-        writeMessage("Peer " + selfId + " has downloaded the piece " + pieceIndex + " from " + peerId +
-                ". Now the number of pieces it has is " + count);
+        if (journal != null) {
+            journal.record(EventJournal.DOWNLOAD, selfId, peerId, pieceIndex, count);
+        }
+        if (textLog) {
+            writeMessage(formatDownload(selfId, peerId, pieceIndex, count));
+        }
     }
 
     public void logComplete(int selfId) {
-        writeMessage("Peer " + selfId + "has downloaded the complete file");
+        if (journal != null) {
+            journal.record(EventJournal.COMPLETE, selfId, -1);
+        }
+        if (textLog) {
+            writeMessage(formatComplete(selfId));
+        }
     }
-}
 
+    /*
+     * Log line text for each event, without the timestamp. Shared with
+     * JournalFormatter so journals render to exactly the same lines.
+     */
+
+    static String formatTCP(int selfID, int targetID) {
+        return "Peer " + selfID + " makes a connection to Peer " + targetID + ".";
+    }
+
+    static String formatChangeNeighbors(int selfID, List<Integer> preferred) {
+        if (preferred.isEmpty()) {
+            return "Peer " + selfID + " has no preferred neighbors.";
+        }
+        StringBuilder neighborList = new StringBuilder();
+        boolean first = true;
+        for (Integer id : preferred) {
+            if (first) {
+                first = false;
+            }
+            else {
+                neighborList.append(", ");
+            }
+            neighborList.append(id);
+        }
+        return "Peer " + selfID + " has the preferred neighbors " + neighborList + ".";
+    }
+
+    static String formatOptimistic(int selfID, int unchokedID) {
+        return "Peer " + selfID + " has the optimistically unchoked neighbor " + unchokedID + ".";
+    }
+
+    static String formatUnchoked(int selfID, int unchokedID) {
+        return "Peer " + selfID + " is unchoked by " + unchokedID + ".";
+    }
+
+    static String formatChoked(int selfID, int chokedID) {
+        return "Peer " + selfID + "is choked by " + chokedID;
+    }
+
+    static String formatInterested(int selfID, int interestedID) {
+        return "Peer " + selfID + "received the ‘interested’ message from" + interestedID;
+    }
+
+    static String formatNotInterested(int selfID, int notInterestedID) {
+        return "Peer " + selfID + "received the ‘not interested’ message from" + notInterestedID;
+    }
+
+    static String formatHaveMessage(int selfID, int senderID, int pieceIndex) {
+        return "Peer " + selfID + " received the 'have' message from " + senderID + " for the piece " + pieceIndex;
+    }
+
+    static String formatDownload(int selfId, int peerId, int pieceIndex, int count) {
+        return "Peer " + selfId + " has downloaded the piece " + pieceIndex + " from " + peerId +
+                ". Now the number of pieces it has is " + count;
+    }
+
+    static String formatComplete(int selfId) {
+        return "Peer " + selfId + "has downloaded the complete file";
+    }
+
+    // Timestamp prefix of a log line for an event at the given time
+    static String formatTimestamp(long millis) {
+        return TIMESTAMP_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()));
+    }
+}
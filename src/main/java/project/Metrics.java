@@ -0,0 +1,140 @@
+package project;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the counters, gauges and histograms of one Peer.
+ * Counters are LongAdders (striped, so concurrent increments don't
+ * contend), histograms are lock-free Histograms of nanoseconds, and
+ * gauges are read from the owner only when a snapshot is taken.
+ *
+ * Metrics are identified by a name plus optional label pairs,
+ * e.g. counter("bytes_sent", "peer", "1002"). Lookups allocate,
+ * so hot paths should look a metric up once and keep the reference.
+ */
+public class Metrics {
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new LongAdder());
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram());
+    }
+
+    public void gauge(LongSupplier value, String name, String... labels) {
+        gauges.put(key(name, labels), value);
+    }
+
+    /**
+     * Builds the identifying key of a metric, in the form
+     * name{label1="value1",label2="value2"}
+     */
+    static String key(String name, String... labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Copy the current value of every metric. Never blocks
+     * the threads which record metrics.
+     * @return an immutable snapshot
+     */
+    public Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+        Map<String, Long> gaugeValues = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        Map<String, Histogram.Snapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(counterValues, gaugeValues, histogramValues);
+    }
+
+    /**
+     * Immutable copy of a Metrics registry, sorted by key
+     */
+    public static class Snapshot {
+        private final Map<String, Long> counters;
+        private final Map<String, Long> gauges;
+        private final Map<String, Histogram.Snapshot> histograms;
+
+        private Snapshot(Map<String, Long> counters, Map<String, Long> gauges,
+                         Map<String, Histogram.Snapshot> histograms) {
+            this.counters = counters;
+            this.gauges = gauges;
+            this.histograms = histograms;
+        }
+
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        public Map<String, Long> getGauges() {
+            return gauges;
+        }
+
+        public Map<String, Histogram.Snapshot> getHistograms() {
+            return histograms;
+        }
+
+        // Value of a counter or gauge, or 0 if there is no such metric
+        public long getValue(String name, String... labels) {
+            String key = key(name, labels);
+            Long value = counters.get(key);
+            if (value == null) {
+                value = gauges.get(key);
+            }
+            return value == null ? 0 : value;
+        }
+
+        public Histogram.Snapshot getHistogram(String name, String... labels) {
+            return histograms.get(key(name, labels));
+        }
+
+        // Human-readable table; histogram columns are in microseconds
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            Map<String, Long> values = new TreeMap<>(counters);
+            values.putAll(gauges);
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                sb.append(String.format("%-60s %d%n", entry.getKey(), entry.getValue()));
+            }
+            sb.append(String.format("%-60s %10s %10s %10s %10s %10s%n", "histogram (us)", "count", "mean", "p50", "p99", "max"));
+            for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()) {
+                Histogram.Snapshot h = entry.getValue();
+                sb.append(String.format("%-60s %10d %10.1f %10.1f %10.1f %10.1f%n",
+                        entry.getKey(), h.getCount(), h.getMean() / 1e3,
+                        h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package project;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Optional HTTP endpoint which serves a Peer's Metrics in the
+ * Prometheus text exposition format at /metrics. It listens on
+ * the loopback interface only and runs on its own thread; each
+ * scrape reads a Metrics snapshot, which never blocks the Peer.
+ */
+public class MetricsHttpServer {
+
+    private static final String PREFIX = "p2p_";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    // Histogram bucket bounds in seconds
+    private static final double[] BUCKET_BOUNDS = {
+            1e-6, 1e-5, 1e-4, 5e-4, 1e-3, 5e-3, 1e-2, 5e-2, 0.1, 0.5, 1, 5, 10
+    };
+
+    private final Metrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param metrics - the registry to serve
+     * @param port - local port to listen on
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsHttpServer(Metrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "metrics-http-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = format(metrics.snapshot()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Render a snapshot in the Prometheus text format.
+     * Counters get a _total suffix; histograms, which hold
+     * nanoseconds, are exported in seconds with a _seconds suffix.
+     * @param snapshot - the metrics to render
+     * @return the exposition text
+     */
+    public static String format(Metrics.Snapshot snapshot) {
+        StringBuilder sb = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<String, Long> entry : snapshot.getCounters().entrySet()) {
+            String name = PREFIX + nameOf(entry.getKey()) + "_total";
+            lastName = typeLine(sb, lastName, name, "counter");
+            sb.append(name).append(labelsOf(entry.getKey())).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : snapshot.getGauges().entrySet()) {
+            String name = PREFIX + nameOf(entry.getKey());
+            lastName = typeLine(sb, lastName, name, "gauge");
+            sb.append(name).append(labelsOf(entry.getKey())).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram.Snapshot> entry : snapshot.getHistograms().entrySet()) {
+            String name = PREFIX + nameOf(entry.getKey()) + "_seconds";
+            String labels = labelsOf(entry.getKey());
+            Histogram.Snapshot h = entry.getValue();
+            lastName = typeLine(sb, lastName, name, "histogram");
+            for (double bound : BUCKET_BOUNDS) {
+                long count = h.getCountAtOrBelow((long) (bound * 1e9));
+                sb.append(name).append("_bucket").append(withLabel(labels, "le", Double.toString(bound)))
+                        .append(' ').append(count).append('\n');
+            }
+            sb.append(name).append("_bucket").append(withLabel(labels, "le", "+Inf"))
+                    .append(' ').append(h.getCount()).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(h.getSum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(h.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Emits a TYPE line when a new metric family starts; keys are sorted, so families are contiguous
+    private static String typeLine(StringBuilder sb, String lastName, String name, String type) {
+        if (!name.equals(lastName)) {
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        return name;
+    }
+
+    private static String nameOf(String key) {
+        int brace = key.indexOf('{');
+        return brace == -1 ? key : key.substring(0, brace);
+    }
+
+    private static String labelsOf(String key) {
+        int brace = key.indexOf('{');
+        return brace == -1 ? "" : key.substring(brace);
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+}
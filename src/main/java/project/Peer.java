@@ -5,29 +5,59 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Peer {
 
     private static final boolean BLOCKING_SERVER_START = false;
 
+    // Upload shares of unchoked neighbors; equal, so the preferred neighbors together
+    // get k/(k+1) of the upload bandwidth and the optimistic neighbor gets 1/(k+1)
+    private static final int PREFERRED_UPLOAD_WEIGHT = 1;
+    private static final int OPTIMISTIC_UPLOAD_WEIGHT = 1;
+    // Pieces which may be queued on a connection before the uploader moves on to other neighbors
+    private static final int MAX_QUEUED_PIECES_PER_NEIGHBOR = 2;
+    private static final long UPLOAD_POLL_MILLIS = 50;
+
+    // Outbound connects are retried with exponential backoff; about 30 s in all before giving up
+    private static final int CONNECT_ATTEMPTS = 10;
+    private static final long CONNECT_INITIAL_BACKOFF_MILLIS = 100;
+    private static final long CONNECT_MAX_BACKOFF_MILLIS = 5_000;
+    private static final int ACCEPT_BACKLOG = 50;
+
+    // Request deadlines are kept to the nearest tick; 512 slots of 100 ms make a 51.2 s turn of the wheel
+    private static final long DEADLINE_TICK_MILLIS = 100;
+    private static final int DEADLINE_SLOTS = 512;
+    // Pieces taken off the choking score of a neighbor, for the current round, each time a request to it times out
+    private static final int TIMEOUT_PENALTY_PIECES = 2;
+    // A request's deadline is at least this many retransmission timeouts (RFC 6298) of the neighbor's link
+    private static final int RTOS_PER_REQUEST = 4;
+    // Largest retransmission timeout a request deadline is stretched for, so no estimate can switch the deadline off
+    private static final long MAX_RTO_MILLIS = 15_000;
+
     // The network settings of this peer
     private PeerConfiguration self;
 
     /*
      * Common Configuration Information
      */
-    private int numberPreferredNeighbors; // The number of neighbors which are preferred
-    private int unchoke; // Unchoking Interval
-    private int optimisticUnchoke; // Optimistic Unchoking Interval
+    private volatile int numberPreferredNeighbors; // The number of neighbors which are preferred
+    private volatile int unchoke; // Unchoking Interval
+    private volatile int optimisticUnchoke; // Optimistic Unchoking Interval
     private String filename; // Name of the file desired by the peer
     private int filesize; // Size of the desired file in bytes
     private int piecesize; // Size of a piece in bytes
@@ -44,6 +74,15 @@ public class Peer {
     // Message Queue
     private BlockingQueue<Message> messageQueue;
 
+    // Bytes held by received messages which have not been handled yet, shared by all Servers
+    private InboundBudget inboundBudget;
+
+    // Rate limiters shared by all Servers, and the per-neighbor rates applied to each Server's own limiters
+    private TokenBucket globalUploadLimiter;
+    private TokenBucket globalDownloadLimiter;
+    private volatile long neighborUploadRate;
+    private volatile long neighborDownloadRate;
+
     // Servers for each peer - key=target's id, value=server
     ConcurrentMap<Integer,Server> servers;
 
@@ -56,7 +95,7 @@ public class Peer {
 
     // Stores whether a peer is currently preferred (T/F)
     // key=peer's id, value=whether peer is preferred
-    ConcurrentMap<Integer, Boolean> preferred;
+    volatile ConcurrentMap<Integer, Boolean> preferred; // replaced by each preferred neighbor round
 
     // Stores whether a peer is currently interested in instance's data (received an InterestedMessage)
     // key=peer's id, value=whether peer is interested
@@ -73,64 +112,165 @@ public class Peer {
     // (NOTE: unlike the other map members, this does not have an entry for all peers at all times)
     ConcurrentMap<Integer, Integer> pendingRequests;
 
+    // Deadlines of the pending requests, by neighbor id; only touched by the message loop, which advances the wheel
+    private final TimingWheel<Integer> requestDeadlines = new TimingWheel<>(DEADLINE_TICK_MILLIS, DEADLINE_SLOTS, nowMillis());
+    private final Map<Integer, TimingWheel.Timeout<Integer>> requestTimeouts = new HashMap<>();
+    private int requestTimeout; // milliseconds
+
+    // Pings and idle detection, run by the message loop every keepAliveInterval ms (0 -> never)
+    private int keepAliveInterval;
+    private int idleTimeout; // milliseconds
+
+    // Whether the handshake advertises Capabilities.SUPPORTED; off by default, since a peer
+    // without the extensions rejects a handshake whose reserved bytes aren't all zero
+    private boolean advertiseCapabilities;
+    private long nextKeepAliveMillis;
+    // Neighbors whose connection is down, and since when (System.nanoTime()); and those down for longer than
+    // idleTimeout, which are given up on and no longer waited for to finish
+    private final ConcurrentMap<Integer, Long> disconnectedSince = new ConcurrentHashMap<>();
+    private final Set<Integer> departed = ConcurrentHashMap.newKeySet();
+
+    // Pieces not yet announced to each neighbor which speaks HaveBatchMessage, flushed by the message loop
+    // haveBatchInterval ms after the first of them (-1 -> nothing waiting); only touched by the message loop
+    private int haveBatchInterval;
+    private final Map<Integer, List<Integer>> pendingHaves = new HashMap<>();
+    private long nextHaveFlushMillis = -1;
+    // Neighbors some Have was suppressed to, which get our whole bitfield once we finish, to see us complete
+    private final Set<Integer> suppressedHavesTo = new HashSet<>();
+    // Our bitfield in the plain and compact encodings, for the piece count it was encoded at; see bitfieldFrame
+    private EncodedFrame[] bitfieldFrames = new EncodedFrame[2];
+    private int bitfieldFramesPieces = -1;
+
+    // Requests from unchoked neighbors waiting to be served, and the thread which serves them
+    private UploadScheduler uploadScheduler;
+    private Thread uploader;
+
+    // Listening socket for neighbors connecting to us, and the thread accepting on it
+    private ServerSocket listener;
+    private Thread acceptor;
+    private volatile long connectMillis = -1; // how long startUp took to connect to every neighbor
+    private volatile boolean shuttingDown = false; // no reconnecting once set
+
+    // Counters and latency histograms; see registerMetrics() for what is recorded
+    private final Metrics metrics = new Metrics();
+    private final ConcurrentMap<Class<?>, Histogram> handleLatency = new ConcurrentHashMap<>(); // by message type
+    private Histogram queueWait;
+    private Histogram diskReadLatency;
+    private Histogram diskWriteLatency;
+    private Histogram preferredRoundDuration;
+    private Histogram optimisticRoundDuration;
+    // Per-neighbor counters, by neighbor id; filled once by registerMetrics()
+    private final Map<Integer, LongAdder> piecesSent = new HashMap<>();
+    private final Map<Integer, LongAdder> piecesReceived = new HashMap<>();
+    private final Map<Integer, LongAdder> havesSuppressed = new HashMap<>();
+    private int metricsPort; // 0 -> no metrics endpoint
+    private final PieceTracer tracer;
+    private boolean pieceTrace; // whether to dump the traced pieces to trace_peer_[id].csv
+    private MetricsHttpServer metricsServer;
+
+    // JMX registrations of this Peer and its Servers
+    private final Management management = new Management();
+
+    // Timers for the choking rounds, and the currently scheduled rounds (replaced when an interval changes)
+    private Timer preferredTimer;
+    private Timer unchokeTimer;
+    private TimerTask preferredRound;
+    private TimerTask optimisticRound;
+    // Held by each round while it runs; the rounds share preferred and optimisticallyUnchokedPeer, and
+    // if they interleave, a neighbor can drop out of both without either round sending it a choke
+    private final Object chokeLock = new Object();
+
     private final TimerTask DETERMINE_PREFERRED_NEIGHBORS = new TimerTask() {
         @Override
         public void run() {
-            ConcurrentMap<Integer,Boolean> newPreferred;
-            if (!self.hasFile()) {
-                // Get the new preferred neighbors
-                newPreferred = computePreferredNeighbors(
-                        peers,
-                        piecesReceivedInLastInterval,
-                        interested,
-                        numberPreferredNeighbors
-                );
-            }
-            else {
-                newPreferred = computePreferredNeighborsAltruistic(peers, interested, numberPreferredNeighbors);
-                //LOG -- new preferred neighbors
-            }
-            mLog.logChangeNeighbors(self.getId(), newPreferred);
-
-            // Send the choke and unchoke messages
-            for (PeerConfiguration peer : peers) {
-                // TODO - BUG: Don't need to unchoke the optimistically unchoked neighbor, check for it
-                if (newPreferred.get(peer.getId()) && !preferred.get(peer.getId())) {
-                    UnchokeMessage m = new UnchokeMessage(peer);
-                    servers.get(peer.getId()).sendMessage(m);
+            synchronized (chokeLock) {
+                long start = System.nanoTime();
+                ChokeRoundEvent event = new ChokeRoundEvent();
+                event.begin();
+                ConcurrentMap<Integer,Boolean> newPreferred;
+                if (!self.hasFile()) {
+                    // Get the new preferred neighbors
+                    newPreferred = computePreferredNeighbors(
+                            peers,
+                            piecesReceivedInLastInterval,
+                            interested,
+                            numberPreferredNeighbors
+                    );
                 }
-                else if (!newPreferred.get(peer.getId()) && preferred.get(peer.getId())) {
-                    if (optimisticallyUnchokedPeer.get() != peer.getId()) {
-                        ChokeMessage m = new ChokeMessage(peer);
+                else {
+                    newPreferred = computePreferredNeighborsAltruistic(peers, interested, numberPreferredNeighbors);
+                    //LOG -- new preferred neighbors
+                }
+                mLog.logChangeNeighbors(self.getId(), newPreferred);
+
+                // Publish the new neighbors and their upload shares before unchoking them, or a quick
+                // request could arrive, be ignored as coming from a choked neighbor, and never be answered
+                ConcurrentMap<Integer,Boolean> oldPreferred = preferred;
+                preferred = newPreferred;
+                updateUploadShares();
+
+                // Send the choke and unchoke messages
+                for (PeerConfiguration peer : peers) {
+                    // TODO - BUG: Don't need to unchoke the optimistically unchoked neighbor, check for it
+                    if (newPreferred.get(peer.getId()) && !oldPreferred.get(peer.getId())) {
+                        UnchokeMessage m = new UnchokeMessage(peer);
                         servers.get(peer.getId()).sendMessage(m);
                     }
+                    else if (!newPreferred.get(peer.getId()) && oldPreferred.get(peer.getId())) {
+                        if (optimisticallyUnchokedPeer.get() != peer.getId()) {
+                            ChokeMessage m = new ChokeMessage(peer);
+                            servers.get(peer.getId()).sendMessage(m);
+                        }
+                    }
                 }
-            }
 
-            // Zero out the scores
-            for (PeerConfiguration peer : peers) {
-                piecesReceivedInLastInterval.put(peer.getId(), 0);
-            }
+                // Zero out the scores
+                for (PeerConfiguration peer : peers) {
+                    piecesReceivedInLastInterval.put(peer.getId(), 0);
+                }
 
-            preferred = newPreferred;
+                preferredRoundDuration.recordSince(start);
+                if (event.shouldCommit()) {
+                    event.round = "preferred";
+                    event.preferredCount = (int) newPreferred.values().stream().filter(b -> b).count();
+                    event.optimisticPeerId = optimisticallyUnchokedPeer.get();
+                    event.commit();
+                }
+            }
         }
     };
 
     private final TimerTask DETERMINE_OPT_UNCHOKED_NEIGHBOR = new TimerTask() {
         @Override
         public void run() {
-            Integer prevPeerId = optimisticallyUnchokedPeer.get();
-            int unchokeId = pickOptUnchokedNeighbor(peers, preferred, interested, prevPeerId);
-            optimisticallyUnchokedPeer.set(unchokeId);
-            if (unchokeId != -1) {
-                // Choke the old one, unless its preferred
-                if (prevPeerId != -1 && !preferred.get(prevPeerId)) {
+            synchronized (chokeLock) {
+                long start = System.nanoTime();
+                ChokeRoundEvent event = new ChokeRoundEvent();
+                event.begin();
+                Integer prevPeerId = optimisticallyUnchokedPeer.get();
+                int unchokeId = pickOptUnchokedNeighbor(peers, preferred, interested, prevPeerId);
+                optimisticallyUnchokedPeer.set(unchokeId);
+                updateUploadShares(); // before the unchoke goes out, as in the preferred round
+                // Choke the old one, unless its preferred or picked again; also when there is no new one,
+                // or it would keep sending requests which are ignored without ever being choked
+                if (prevPeerId != -1 && prevPeerId != unchokeId && !preferred.get(prevPeerId)) {
                     servers.get(prevPeerId).sendMessage(new ChokeMessage(getPeerWithId(prevPeerId)));
                 }
-                // Unchoke the new one
-                servers.get(unchokeId).sendMessage(new UnchokeMessage(getPeerWithId(unchokeId)));
-                //LOG -- optimistically unchoked neighbor
-                mLog.logOptimistic(self.getId(), unchokeId);
+                if (unchokeId != -1) {
+                    // Unchoke the new one
+                    if (prevPeerId != unchokeId) {
+                        servers.get(unchokeId).sendMessage(new UnchokeMessage(getPeerWithId(unchokeId)));
+                    }
+                    //LOG -- optimistically unchoked neighbor
+                    mLog.logOptimistic(self.getId(), unchokeId);
+                }
+                optimisticRoundDuration.recordSince(start);
+                if (event.shouldCommit()) {
+                    event.round = "optimistic";
+                    event.preferredCount = (int) preferred.values().stream().filter(b -> b).count();
+                    event.optimisticPeerId = unchokeId;
+                    event.commit();
+                }
             }
         }
     };
@@ -165,17 +305,34 @@ public class Peer {
         }
 
         this.messageQueue = new LinkedBlockingQueue<>();
+        // The budget must always fit at least one maximum-size frame
+        this.inboundBudget = new InboundBudget(Math.max(commonConfig.inboundBufferSize, maxFrameLength()));
+        this.globalUploadLimiter = new TokenBucket(commonConfig.maxUploadRate);
+        this.globalDownloadLimiter = new TokenBucket(commonConfig.maxDownloadRate);
+        this.neighborUploadRate = commonConfig.maxNeighborUploadRate;
+        this.neighborDownloadRate = commonConfig.maxNeighborDownloadRate;
+        this.metricsPort = commonConfig.metricsPort;
+        this.pieceTrace = commonConfig.pieceTrace;
+        this.tracer = new PieceTracer(metrics, pieceTrace); // the raw traces only when they will be dumped
+        this.requestTimeout = commonConfig.requestTimeout;
+        this.keepAliveInterval = commonConfig.keepAliveInterval;
+        this.idleTimeout = commonConfig.idleTimeout;
+        this.haveBatchInterval = commonConfig.haveBatchInterval;
+        this.advertiseCapabilities = commonConfig.advertiseCapabilities;
         this.servers = new ConcurrentHashMap<>(this.peers.size()); // initial capacity
         this.interested = new ConcurrentHashMap<>(this.peers.size());
         this.preferred = new ConcurrentHashMap<>(numberPreferredNeighbors);
-        this.beingChokedBy = new HashSet<>();
+        this.beingChokedBy = ConcurrentHashMap.newKeySet(); // read by monitoring threads
         this.pendingRequests = new ConcurrentHashMap<>();
+        this.uploadScheduler = new UploadScheduler(piecesize, this::pieceLength);
+        registerMetrics();
         this.optimisticallyUnchokedPeer = new AtomicReference<>(-1); // Initially no one
         this.piecesReceivedInLastInterval = new ConcurrentHashMap<>(this.peers.size());
         for (PeerConfiguration peer : peers) {
             piecesReceivedInLastInterval.put(peer.getId(), 0);
             preferred.put(peer.getId(), false);
             interested.put(peer.getId(), false); // Init everyone as uninterested
+            beingChokedBy.add(peer.getId()); // Every connection starts out choked
         }
 
         this.bitfields = new ConcurrentHashMap<>(this.peers.size() + 1); // initial capacity
@@ -184,7 +341,8 @@ public class Peer {
             Arrays.fill(bitfield, p.hasFile());
             this.bitfields.put(p.getId(), bitfield);
         }
-        mLog = new MessageLogger(self.getId());
+        EventJournal journal = commonConfig.eventJournal ? new EventJournal(self.getId()) : null;
+        mLog = new MessageLogger(self.getId(), commonConfig.logFlushOnShutdown, commonConfig.textLog, journal);
 
         this.f = new RandomAccessFile(new File(getFilePath()), "rw");
         if (!self.hasFile()) {
@@ -213,6 +371,7 @@ public class Peer {
      * @param msg - the Message to add
      */
     public void putMessage(Message msg){
+        msg.setEnqueuedNanos(System.nanoTime());
         try {
             this.messageQueue.put(msg);
         }
@@ -228,6 +387,18 @@ public class Peer {
      * processes and continually handles messages
      */
     public void run() {
+        management.registerPeer(this, self.getId());
+        if (metricsPort != 0) {
+            try {
+                metricsServer = new MetricsHttpServer(metrics, metricsPort);
+                metricsServer.start();
+            }
+            catch (IOException e) {
+                System.out.println("Could not start metrics endpoint on port " + metricsPort + "; continuing without it");
+                e.printStackTrace();
+            }
+        }
+
         try {
             startUp();
         }
@@ -242,17 +413,44 @@ public class Peer {
             return; // Terminate
         }
 
-        // Delays are 1000L to convert from seconds to milliseconds
-        Timer preferredTimer = new Timer();
-        preferredTimer.schedule(DETERMINE_PREFERRED_NEIGHBORS, unchoke * 1000L, unchoke * 1000L);
-        Timer unchokeTimer = new Timer();
-        unchokeTimer.schedule(DETERMINE_OPT_UNCHOKED_NEIGHBOR, optimisticUnchoke * 1000L, optimisticUnchoke * 1000L);
+        uploader = new Thread(this::serveUploads, "uploader-" + self.getId());
+        uploader.start();
+
+        preferredTimer = new Timer();
+        unchokeTimer = new Timer();
+        schedulePreferredRound();
+        scheduleOptimisticRound();
 
+        nextKeepAliveMillis = nowMillis() + keepAliveInterval;
         while (!isComplete()) {
             try {
-                // Blocks until a message is available
-                Message msg = this.messageQueue.take();
-                handleMessage(msg);
+                // Blocks until a message is available, or the next request deadline or keep-alive is due
+                long wait = millisUntilNextTimer(nowMillis());
+                Message msg = wait < 0
+                        ? this.messageQueue.take()
+                        : this.messageQueue.poll(wait, TimeUnit.MILLISECONDS);
+                long now = nowMillis();
+                requestDeadlines.advance(now, this::handleRequestTimeout);
+                if (keepAliveInterval > 0 && now >= nextKeepAliveMillis) {
+                    nextKeepAliveMillis = now + keepAliveInterval;
+                    checkConnections();
+                }
+                if (nextHaveFlushMillis >= 0 && now >= nextHaveFlushMillis) {
+                    flushHaves();
+                }
+                if (msg == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                msg.setDequeuedNanos(start);
+                queueWait.record(start - msg.getEnqueuedNanos());
+                try {
+                    handleMessage(msg);
+                    handleLatencyOf(msg).recordSince(start);
+                }
+                finally {
+                    inboundBudget.release(msg.getChargedBytes());
+                }
             }
             catch (InterruptedException e) {
                 reportException(e);
@@ -268,6 +466,7 @@ public class Peer {
                 break;
             }
         }
+        flushHaves(); // the neighbors still downloading need our last pieces to see us finish
         shutDown();
     }
 
@@ -276,83 +475,406 @@ public class Peer {
      * construction
      */
     public void startUp() throws FileNotFoundException, IOException {
-        List<PeerConfiguration> activeStart = new ArrayList<>();
-        List<PeerConfiguration> passiveStart = new LinkedList<>();
+        long start = System.nanoTime();
+        CountDownLatch connected = new CountDownLatch(peers.size());
+
+        // Listen before connecting out, so the neighbors connecting to us don't have to retry
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(self.getPort()), ACCEPT_BACKLOG);
+        acceptor = new Thread(() -> acceptConnections(connected), "acceptor-" + self.getId());
+        acceptor.start();
+
+        // Connect to the lower ids, all at once; each Server retries with backoff until the neighbor listens
         for (PeerConfiguration peer : peers) {
-            if (peer.getId() > self.getId()) {
-                passiveStart.add(peer);
-            }
-            else {
-                activeStart.add(peer);
+            if (peer.getId() < self.getId()) {
+                Server server = new Server(self, peer, false, mLog, this::putMessage);
+                configureServer(server);
+                server.setConnectRetry(CONNECT_ATTEMPTS, CONNECT_INITIAL_BACKOFF_MILLIS, CONNECT_MAX_BACKOFF_MILLIS);
+                servers.put(peer.getId(), server);
+
+                Thread serverLauncher = new Thread(() -> {
+                    startServer(server, peer);
+                    connected.countDown();
+                }, "connect-" + self.getId() + "-" + peer.getId());
+                serverLauncher.start();
             }
         }
 
-        for (PeerConfiguration peer : activeStart) {
-            Peer instance = this;
-            Server server = new Server(self, peer, (peer.getId() > self.getId()), mLog, (Message m) -> {
-                instance.putMessage(m);
-                synchronized (instance) {
-                    this.notify();
-                }
-            });
-            servers.put(peer.getId(), server);
-
-            Thread serverLauncher = new Thread(() -> {
-                boolean success = servers.get(peer.getId()).start();
-                if (!success) {
-                    // TODO - find a better way to handle this
-                    System.out.println("Server for neighbor " + peer + " failed to start");
-                }
-                else {
-                    System.out.println("Server for neighbor " + peer + " started");
-                    // Send bitfield to peer if this has the file
-                    if (self.hasFile()) {
-                        BitfieldMessage m = new BitfieldMessage(bitfields.get(self.getId()), peer);
-                        servers.get(peer.getId()).sendMessage(m);
-                    }
-                }
-            });
-            serverLauncher.start();
-        }
-
-        ServerSocket listener = new ServerSocket(self.getPort());
-        while (!passiveStart.isEmpty()) {
-            Socket conn = listener.accept();
-            PeerConfiguration peer = passiveStart.get(0);
-            passiveStart.remove(0);
-            mLog.logTCP(self.getId(), peer.getId());
-
-            Peer instance = this;
-            Server server = new Server(self, peer, conn, (peer.getId() > self.getId()), mLog, (Message m) -> {
-                instance.putMessage(m);
-                synchronized (instance) {
-                    this.notify();
-                }
-            });
-            servers.put(peer.getId(), server);
-            passiveStart.remove(peer);
+        // The higher ids connect to us; wait for every neighbor
+        try {
+            connected.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to neighbors");
+        }
+        connectMillis = (System.nanoTime() - start) / 1_000_000L;
+        System.out.printf("Peer %d connected to its %d neighbors in %d ms%n", self.getId(), peers.size(), connectMillis);
+    }
 
-            boolean success = servers.get(peer.getId()).start();
-            if (!success) {
-                // TODO - find a better way to handle this
-                System.out.println("Server for neighbor " + peer + " failed to start");
+    /**
+     * Accept connections until the listener is closed. Each
+     * connection is identified by the id in its handshake, on its
+     * own thread, so a slow handshake doesn't hold up the others.
+     * @param connected - counted down once per neighbor bound to a connection
+     */
+    private void acceptConnections(CountDownLatch connected) {
+        while (!listener.isClosed()) {
+            try {
+                Socket conn = listener.accept();
+                Thread handshaker = new Thread(() -> bindConnection(conn, connected),
+                        "handshake-" + self.getId() + "-" + conn.getPort());
+                handshaker.start();
             }
-            else {
-                System.out.println("Server for neighbor " + peer + " started");
-                // Send bitfield to peer if this has the file
-                if (self.hasFile()) {
-                    BitfieldMessage m = new BitfieldMessage(bitfields.get(self.getId()), peer);
-                    servers.get(peer.getId()).sendMessage(m);
+            catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.out.println("Peer " + self.getId() + " failed to accept a connection");
+                    reportException(e);
                 }
             }
         }
     }
 
+    // Read the handshake of an accepted connection and bind it to the neighbor it identifies
+    private void bindConnection(Socket conn, CountDownLatch connected) {
+        Server.Accepted accepted;
+        try {
+            accepted = Server.accept(conn);
+        }
+        catch (IOException e) {
+            System.out.println("Peer " + self.getId() + " dropped a connection without a valid handshake from "
+                    + conn.getRemoteSocketAddress());
+            try {
+                conn.close();
+            }
+            catch (IOException ignored) {
+                // Already unusable
+            }
+            return;
+        }
+
+        int id = accepted.getPeerId();
+        PeerConfiguration peer = acceptedNeighbor(peers, self.getId(), id);
+        if (peer == null) {
+            System.out.printf("Peer %d rejected a connection claiming to be unexpected peer %d%n", self.getId(), id);
+            accepted.close();
+            return;
+        }
+        Server server = new Server(self, peer, accepted, mLog, this::putMessage);
+        Server previous = bindServer(servers, id, server);
+        if (previous == server) {
+            System.out.printf("Peer %d rejected a second connection from peer %d%n", self.getId(), id);
+            accepted.close();
+            return;
+        }
+        boolean reconnected = previous != null;
+        configureServer(server);
+        mLog.logTCP(self.getId(), peer.getId());
+        if (startServer(server, peer) && reconnected) {
+            metrics.counter("reconnects", "peer", Integer.toString(id)).increment();
+        }
+        if (!reconnected) {
+            connected.countDown();
+        }
+    }
+
+    /**
+     * The neighbor an accepted connection may be bound to. Only
+     * higher ids connect to us; we connect to the lower ones.
+     * @param peers - the neighbors in PeerInfo.cfg
+     * @param selfId - the id of this peer
+     * @param claimedId - the id in the connection's handshake
+     * @return the neighbor, or null if the connection must be rejected
+     */
+    static PeerConfiguration acceptedNeighbor(List<PeerConfiguration> peers, int selfId, int claimedId) {
+        if (claimedId <= selfId) {
+            return null;
+        }
+        for (PeerConfiguration peer : peers) {
+            if (peer.getId() == claimedId) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bind the Server of an accepted connection to its neighbor.
+     * A neighbor only connects again after losing its connection,
+     * whether or not we have noticed, so a later connection
+     * supersedes the bound one. The superseded Server is reported
+     * lost first, so the loss is handled before anything received
+     * over the new connection.
+     * @param servers - the bound Servers, by neighbor id
+     * @param id - the neighbor's id
+     * @param server - the Server of the accepted connection
+     * @return the superseded Server, or null for the neighbor's first connection;
+     * server itself if another connection from the neighbor was bound meanwhile, and this one is rejected
+     */
+    static Server bindServer(ConcurrentMap<Integer, Server> servers, int id, Server server) {
+        Server existing = servers.putIfAbsent(id, server);
+        if (existing == null) {
+            return null;
+        }
+        existing.connectionLost();
+        return servers.replace(id, existing, server) ? existing : server;
+    }
+
+    /**
+     * Start a Server (connecting and handshaking) and send our bitfield over it
+     * @return whether the Server started
+     */
+    private boolean startServer(Server server, PeerConfiguration peer) {
+        boolean success = server.start();
+        if (!success) {
+            // TODO - find a better way to handle this
+            System.out.println("Server for neighbor " + peer + " failed to start");
+        }
+        else {
+            System.out.println("Server for neighbor " + peer + " started, capabilities "
+                    + Capabilities.describe(server.getCapabilities()));
+            disconnectedSince.remove(peer.getId());
+            departed.remove(peer.getId());
+            // Send our bitfield whenever we have any piece: Haves sent before this connection
+            // (or queued on a dropped one) never reached the neighbor. A neighbor which speaks
+            // the compact encodings always gets one, HaveNone included, in the smallest form
+            boolean[] bitfield = bitfields.get(self.getId());
+            if (server.supports(Capabilities.FAST_BITFIELD)) {
+                server.sendMessage(bitfieldFrame(true));
+            }
+            else if (countPieces(bitfield) > 0) {
+                server.sendMessage(bitfieldFrame(false));
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Set up the metrics recorded by this Peer:
+     * queue depths and waits, per-message-type handler latency,
+     * disk latency, choke round duration and piece progress.
+     * Per-neighbor traffic is recorded by each Server.
+     */
+    private void registerMetrics() {
+        queueWait = metrics.histogram("message_queue_wait");
+        diskReadLatency = metrics.histogram("disk_read_latency");
+        diskWriteLatency = metrics.histogram("disk_write_latency");
+        preferredRoundDuration = metrics.histogram("choke_round_duration", "round", "preferred");
+        optimisticRoundDuration = metrics.histogram("choke_round_duration", "round", "optimistic");
+        metrics.gauge(() -> messageQueue.size(), "message_queue_depth");
+        metrics.gauge(() -> mLog.getDroppedLines(), "log_lines_dropped");
+        metrics.gauge(() -> uploadScheduler.pending(), "upload_queue_depth");
+        metrics.gauge(() -> inboundBudget.getCapacity() - inboundBudget.getAvailable(), "inbound_buffered_bytes");
+        metrics.gauge(() -> pendingRequests.size(), "pending_requests");
+        metrics.gauge(() -> countPieces(bitfields.get(self.getId())), "pieces_owned");
+        metrics.gauge(this::numberOfPieces, "pieces_total");
+        metrics.gauge(() -> connectMillis, "connect_millis");
+        for (PeerConfiguration peer : peers) {
+            int id = peer.getId();
+            String label = Integer.toString(id);
+            piecesSent.put(id, metrics.counter("pieces_sent", "peer", label));
+            piecesReceived.put(id, metrics.counter("pieces_received", "peer", label));
+            havesSuppressed.put(id, metrics.counter("haves_suppressed", "peer", label));
+            // Choking and interest state of each neighbor (1 = true), read from the concurrent maps
+            metrics.gauge(() -> preferred.get(id) ? 1 : 0, "neighbor_preferred", "peer", label);
+            metrics.gauge(() -> Objects.equals(optimisticallyUnchokedPeer.get(), id) ? 1 : 0,
+                    "neighbor_optimistically_unchoked", "peer", label);
+            metrics.gauge(() -> interested.get(id) ? 1 : 0, "neighbor_interested", "peer", label);
+            metrics.gauge(() -> beingChokedBy.contains(id) ? 1 : 0, "neighbor_choking_us", "peer", label);
+            metrics.gauge(() -> piecesReceivedInLastInterval.get(id), "neighbor_pieces_last_interval", "peer", label);
+            metrics.gauge(() -> countPieces(bitfields.get(id)), "neighbor_pieces_owned", "peer", label);
+            metrics.gauge(() -> {
+                Server server = servers.get(id);
+                long rtt = server != null ? server.getSmoothedRttNanos() : -1;
+                return rtt < 0 ? -1 : rtt / 1_000L;
+            }, "neighbor_rtt_micros", "peer", label);
+        }
+    }
+
+    private Histogram handleLatencyOf(Message msg) {
+        return handleLatency.computeIfAbsent(msg.getClass(),
+                (Class<?> type) -> metrics.histogram("handle_latency", "type", type.getSimpleName()));
+    }
+
+    // Milliseconds startUp took to connect to every neighbor, or -1 until it has
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Apply the Peer-wide connection settings to a new
+     * Server before it is started
+     * @param server - the Server to configure
+     */
+    private void configureServer(Server server) {
+        server.setCapabilities(advertiseCapabilities ? Capabilities.SUPPORTED : 0);
+        server.setInboundBudget(inboundBudget);
+        server.setMaxFrameLength(maxFrameLength());
+        server.setMetrics(metrics);
+        management.registerServer(server, self.getId());
+        server.setGlobalRateLimiters(globalUploadLimiter, globalDownloadLimiter);
+        server.getUploadLimiter().setRate(neighborUploadRate);
+        server.getDownloadLimiter().setRate(neighborDownloadRate);
+    }
+
+    /*
+     * The choking rounds are scheduled through wrapper tasks, since a
+     * TimerTask can only be scheduled once and the intervals can be
+     * changed at runtime. Delays are 1000L to convert from seconds to milliseconds.
+     */
+
+    private synchronized void schedulePreferredRound() {
+        if (preferredRound != null) {
+            preferredRound.cancel();
+        }
+        preferredRound = new TimerTask() {
+            @Override
+            public void run() {
+                DETERMINE_PREFERRED_NEIGHBORS.run();
+            }
+        };
+        preferredTimer.schedule(preferredRound, unchoke * 1000L, unchoke * 1000L);
+    }
+
+    private synchronized void scheduleOptimisticRound() {
+        if (optimisticRound != null) {
+            optimisticRound.cancel();
+        }
+        optimisticRound = new TimerTask() {
+            @Override
+            public void run() {
+                DETERMINE_OPT_UNCHOKED_NEIGHBOR.run();
+            }
+        };
+        unchokeTimer.schedule(optimisticRound, optimisticUnchoke * 1000L, optimisticUnchoke * 1000L);
+    }
+
+    public int getNumberPreferredNeighbors() {
+        return numberPreferredNeighbors;
+    }
+
+    // Takes effect at the next preferred neighbor round
+    public void setNumberPreferredNeighbors(int numberPreferredNeighbors) {
+        if (numberPreferredNeighbors < 0) {
+            throw new IllegalArgumentException("Number of preferred neighbors must not be negative");
+        }
+        this.numberPreferredNeighbors = numberPreferredNeighbors;
+    }
+
+    public int getUnchokingInterval() {
+        return unchoke;
+    }
+
+    /**
+     * Change the preferred neighbor interval while running;
+     * the next round happens one new interval from now
+     * @param seconds - the new interval
+     */
+    public synchronized void setUnchokingInterval(int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Unchoking interval must be positive");
+        }
+        unchoke = seconds;
+        if (preferredTimer != null) {
+            schedulePreferredRound();
+        }
+    }
+
+    public int getOptimisticUnchokingInterval() {
+        return optimisticUnchoke;
+    }
+
+    /**
+     * Change the optimistic unchoke interval while running;
+     * the next round happens one new interval from now
+     * @param seconds - the new interval
+     */
+    public synchronized void setOptimisticUnchokingInterval(int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Optimistic unchoking interval must be positive");
+        }
+        optimisticUnchoke = seconds;
+        if (unchokeTimer != null) {
+            scheduleOptimisticRound();
+        }
+    }
+
+    public TokenBucket getGlobalUploadLimiter() {
+        return globalUploadLimiter;
+    }
+
+    public TokenBucket getGlobalDownloadLimiter() {
+        return globalDownloadLimiter;
+    }
+
+    public PeerConfiguration getSelf() {
+        return self;
+    }
+
+    int getMessageQueueDepth() {
+        return messageQueue.size();
+    }
+
+    int getUploadQueueDepth() {
+        return uploadScheduler.pending();
+    }
+
+    /**
+     * Change the upload rate limits while running
+     * @param globalRate - bytes per second across all neighbors, 0 for unlimited
+     * @param neighborRate - bytes per second to each neighbor, 0 for unlimited
+     */
+    public void setUploadRateLimits(long globalRate, long neighborRate) {
+        globalUploadLimiter.setRate(globalRate);
+        neighborUploadRate = neighborRate;
+        for (Server server : servers.values()) {
+            server.getUploadLimiter().setRate(neighborRate);
+        }
+    }
+
+    /**
+     * Change the download rate limits while running
+     * @param globalRate - bytes per second across all neighbors, 0 for unlimited
+     * @param neighborRate - bytes per second from each neighbor, 0 for unlimited
+     */
+    public void setDownloadRateLimits(long globalRate, long neighborRate) {
+        globalDownloadLimiter.setRate(globalRate);
+        neighborDownloadRate = neighborRate;
+        for (Server server : servers.values()) {
+            server.getDownloadLimiter().setRate(neighborRate);
+        }
+    }
+
     /**
      * Shutdown all active resources,
      * such as threads, open files, etc.
      */
     public void shutDown() {
+        shuttingDown = true;
+        if (uploader != null) {
+            uploader.interrupt();
+        }
+        if (preferredTimer != null) {
+            preferredTimer.cancel();
+        }
+        if (unchokeTimer != null) {
+            unchokeTimer.cancel();
+        }
+        management.unregisterAll();
+        if (listener != null) {
+            try {
+                listener.close(); // Ends the acceptor
+            }
+            catch (IOException e) {
+                System.out.println("Listening socket could not close properly");
+            }
+        }
+
         try {
             f.close();
         }
@@ -363,6 +885,25 @@ public class Peer {
         for (PeerConfiguration peer : peers) {
             servers.get(peer.getId()).stop();
         }
+
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        System.out.println("Metrics for peer " + self.getId() + ":");
+        System.out.print(metrics.snapshot());
+        if (tracer.getTraceCount() > 0) {
+            System.out.println("Piece stages for peer " + self.getId() + ":");
+            System.out.print(tracer.summary());
+        }
+        if (pieceTrace) {
+            try {
+                tracer.dump(Path.of("trace_peer_" + self.getId() + ".csv"));
+            }
+            catch (IOException e) {
+                System.out.println("Could not write the piece trace");
+            }
+        }
+        mLog.close();
     }
 
     /**
@@ -372,6 +913,18 @@ public class Peer {
      * @param msg - message to be handled
      */
     private void handleMessage(Message msg) throws UnsupportedOperationException {
+        MessageHandledEvent event = new MessageHandledEvent();
+        event.begin();
+        dispatchMessage(msg);
+        if (event.shouldCommit()) {
+            event.peerId = msg.getPeer().getId();
+            event.messageType = msg.getClass().getSimpleName();
+            event.pieceIndex = Message.pieceIndexOf(msg);
+            event.commit();
+        }
+    }
+
+    private void dispatchMessage(Message msg) throws UnsupportedOperationException {
         Message response = null;
         if (msg instanceof ChokeMessage) {
             ChokeMessage m = (ChokeMessage) msg;
@@ -406,6 +959,13 @@ public class Peer {
             mLog.logHaveMessage(self.getId(), m.getPeer().getId(), m.getIndex());
             response = handleHaveMessage(m);
         }
+        else if (msg instanceof HaveBatchMessage) {
+            HaveBatchMessage m = (HaveBatchMessage) msg;
+            for (int index : m.getIndices()) {
+                mLog.logHaveMessage(self.getId(), m.getPeer().getId(), index);
+            }
+            response = handleHaves(m.getPeer(), m.getIndices());
+        }
         else if (msg instanceof BitfieldMessage) {
             BitfieldMessage m = (BitfieldMessage) msg;
             response = handleBitfieldMessage(m);
@@ -418,6 +978,9 @@ public class Peer {
             PieceMessage m = (PieceMessage) msg;
             response = handlePieceMessage(m);
         }
+        else if (msg instanceof ConnectionLostMessage) {
+            handleConnectionLost((ConnectionLostMessage) msg);
+        }
         else {
             throw new UnsupportedOperationException("Unsupported message type");
         }
@@ -430,9 +993,10 @@ public class Peer {
     // Private function - updates internal data structure then calls static function
     private Message handleBitfieldMessage(BitfieldMessage msg) {
         Integer sender = msg.getPeer().getId();
-        // Save this bitfield to the internal data structure
+        // Merge this bitfield into the internal data structure; pieces are never lost,
+        // so a Have which overtook the bitfield must not be cleared by it
         for (int i = 0; i < bitfields.get(sender).length; i++) {
-            bitfields.get(sender)[i] = msg.hasPiece(i);
+            bitfields.get(sender)[i] |= msg.hasPiece(i);
         }
         return handleBitfieldMessage(msg, bitfields.get(sender), bitfields.get(self.getId()));
     }
@@ -456,13 +1020,171 @@ public class Peer {
     private Message handleChokeMessage(ChokeMessage msg) {
         Integer senderId = msg.getPeer().getId();
         beingChokedBy.add(senderId); // Note we are being choked
-        pendingRequests.remove(senderId); // The pending request we made won't be fulfilled
+        releaseRequest(senderId); // The pending request we made won't be fulfilled
         return null; // No response
     }
 
+    /**
+     * Forget the request outstanding to a neighbor which won't
+     * answer it, and look for the piece from the other neighbors.
+     * Asking the neighbor itself for something else is left to
+     * the caller.
+     * @param peerId - id of the neighbor
+     */
+    private void releaseRequest(int peerId) {
+        Integer cancelled = removeRequest(peerId);
+        tracer.cancelled(peerId);
+        if (cancelled != null && !bitfields.get(self.getId())[cancelled]) {
+            // Other neighbors may have been told we were not interested, and stopped being asked
+            // for pieces, while this piece was pending here; tell everyone who has it that we want
+            // it again, and ask those who have us unchoked and idle for it right away
+            for (PeerConfiguration peer : peers) {
+                if (bitfields.get(peer.getId())[cancelled]) {
+                    servers.get(peer.getId()).sendMessage(new InterestedMessage(peer));
+                    if (peer.getId() != peerId && !beingChokedBy.contains(peer.getId())
+                            && !pendingRequests.containsKey(peer.getId())) {
+                        Integer next = pickNewPieceToRequest(peer.getId());
+                        if (next != -1) {
+                            servers.get(peer.getId()).sendMessage(makeRequest(peer, next));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A request's deadline passed without the piece arriving; the
+     * neighbor dropped the request, or is too slow to wait for.
+     * Ask the other neighbors for the piece, count the timeout
+     * against the neighbor's choking score, and, if it still has
+     * us unchoked, give it a request for another piece.
+     * @param peerId - id of the neighbor
+     */
+    private void handleRequestTimeout(Integer peerId) {
+        Integer index = pendingRequests.get(peerId);
+        if (index == null) {
+            return; // Deadlines are cancelled with their requests, so this shouldn't happen
+        }
+        System.out.printf("Peer %d timed out waiting for piece %d from peer %d%n", self.getId(), index, peerId);
+        metrics.counter("request_timeouts", "peer", Integer.toString(peerId)).increment();
+        piecesReceivedInLastInterval.merge(peerId, -TIMEOUT_PENALTY_PIECES, Integer::sum);
+        releaseRequest(peerId);
+        if (!beingChokedBy.contains(peerId)) {
+            // Ask it for something else, leaving the piece to the others, unless none of them has it;
+            // handing it straight back would keep the piece from them for another timeout
+            Map<Integer, Integer> taken = new HashMap<>(pendingRequests);
+            for (PeerConfiguration peer : peers) {
+                if (peer.getId() != peerId && bitfields.get(peer.getId())[index]) {
+                    taken.put(peerId, index);
+                    break;
+                }
+            }
+            Integer next = pickNewPieceToRequest(bitfields.get(peerId), bitfields.get(self.getId()), taken);
+            if (next != -1) {
+                servers.get(peerId).sendMessage(makeRequest(getPeerWithId(peerId), next));
+            }
+        }
+    }
+
+    /**
+     * Ping every connected neighbor, and drop connections which
+     * have been silent for longer than idleTimeout; a live neighbor
+     * at least answers our pings. Give up on neighbors which have
+     * been disconnected that long, so a neighbor which finished and
+     * exited while its last Have messages were lost isn't waited
+     * for forever.
+     */
+    private void checkConnections() {
+        long idleNanos = idleTimeout * 1_000_000L;
+        for (PeerConfiguration peer : peers) {
+            int id = peer.getId();
+            Long since = disconnectedSince.get(id);
+            Server server = servers.get(id);
+            if (since != null) {
+                if (idleTimeout > 0 && System.nanoTime() - since > idleNanos && departed.add(id)) {
+                    System.out.printf("Peer %d gave up on peer %d, disconnected for over %d ms%n",
+                            self.getId(), id, idleTimeout);
+                    metrics.counter("neighbors_departed", "peer", Integer.toString(id)).increment();
+                }
+            }
+            else if (server != null && server.isConnected() && server.supports(Capabilities.PING)) {
+                // A neighbor which doesn't speak ping may be silent for any length of time
+                if (idleTimeout > 0 && server.getIdleNanos() > idleNanos) {
+                    System.out.printf("Peer %d heard nothing from peer %d for over %d ms, dropping the connection%n",
+                            self.getId(), id, idleTimeout);
+                    metrics.counter("idle_timeouts", "peer", Integer.toString(id)).increment();
+                    server.connectionLost(); // handled like any other drop
+                }
+                else {
+                    server.sendPing();
+                }
+            }
+        }
+    }
+
+    /**
+     * A neighbor's connection dropped. Release its request, reset
+     * the choking and interest state, which start over on the new
+     * connection, and, if we are the side which connects (the higher
+     * id, as in startUp), reconnect. The lower id waits for the
+     * neighbor to connect again on the listening socket.
+     */
+    private void handleConnectionLost(ConnectionLostMessage msg) {
+        PeerConfiguration peer = msg.getPeer();
+        int id = peer.getId();
+        System.out.printf("Peer %d lost its connection to peer %d%n", self.getId(), id);
+        metrics.counter("connections_lost", "peer", Integer.toString(id)).increment();
+        msg.getServer().stop();
+
+        beingChokedBy.add(id);
+        releaseRequest(id);
+        interested.put(id, false);
+        synchronized (chokeLock) {
+            // Not preferred, so the next round unchokes it again over the new connection if it should be
+            preferred.put(id, false);
+            if (Objects.equals(optimisticallyUnchokedPeer.get(), id)) {
+                optimisticallyUnchokedPeer.set(-1);
+            }
+            updateUploadShares(); // drops the requests it queued
+        }
+
+        if (servers.get(id) != msg.getServer()) {
+            return; // Already reconnected
+        }
+        disconnectedSince.putIfAbsent(id, System.nanoTime());
+        if (shuttingDown || id > self.getId()) {
+            return;
+        }
+        if (hasAllPieces(bitfields.get(self.getId())) && hasAllPieces(bitfields.get(id))) {
+            return; // Nothing left to exchange; the neighbor is most likely exiting
+        }
+        reconnect(peer);
+    }
+
+    // Connect to a neighbor again, in the background, and resend our bitfield once connected
+    private void reconnect(PeerConfiguration peer) {
+        Server server = new Server(self, peer, false, mLog, this::putMessage);
+        configureServer(server);
+        server.setConnectRetry(CONNECT_ATTEMPTS, CONNECT_INITIAL_BACKOFF_MILLIS, CONNECT_MAX_BACKOFF_MILLIS);
+        // Replace the dead Server right away; anything sent meanwhile is queued until the connection is up
+        servers.put(peer.getId(), server);
+
+        Thread reconnector = new Thread(() -> {
+            if (startServer(server, peer)) {
+                metrics.counter("reconnects", "peer", Integer.toString(peer.getId())).increment();
+            }
+        }, "reconnect-" + self.getId() + "-" + peer.getId());
+        reconnector.setDaemon(true); // Must not keep a finished Peer alive
+        reconnector.start();
+    }
+
     private Message handleUnchokeMessage(UnchokeMessage msg) {
         Integer senderId = msg.getPeer().getId();
         beingChokedBy.remove(senderId);
+        if (pendingRequests.containsKey(senderId)) {
+            return null; // A repeated unchoke; only one request may be outstanding per neighbor
+        }
 
         // should send a request message, check for what piece the sender can give the received (self)
         Integer newPieceToRequest = pickNewPieceToRequest(senderId);
@@ -470,20 +1192,45 @@ public class Peer {
             return new UninterestedMessage(msg.getPeer());
         }
         else {
-            pendingRequests.put(senderId, newPieceToRequest);
-            return new RequestMessage(newPieceToRequest, msg.getPeer());
+            return makeRequest(msg.getPeer(), newPieceToRequest);
         }
     }
 
     private Message handleHaveMessage(HaveMessage msg) {
-        Integer senderId = msg.getPeer().getId();
-        bitfields.get(senderId)[msg.getIndex()] = true;
+        return handleHaves(msg.getPeer(), msg.getIndex());
+    }
 
-        if (!bitfields.get(self.getId())[msg.getIndex()]) {
-            return new InterestedMessage(msg.getPeer());
+    // Record pieces a neighbor announced, in a HaveMessage or a HaveBatchMessage, and respond as to a single Have
+    private Message handleHaves(PeerConfiguration sender, int... indices) {
+        Integer senderId = sender.getId();
+        // Check the whole frame first, so a bad index doesn't leave it half applied
+        for (int index : indices) {
+            if (index < 0 || index >= numberOfPieces()) {
+                System.out.printf("Peer %d announced bad-index piece %d to Peer %d, ignoring its frame%n",
+                        senderId, index, self.getId());
+                return null;
+            }
         }
-        else if (pickNewPieceToRequest(msg.getPeer().getId()) == -1){
-            return new UninterestedMessage(msg.getPeer());
+        boolean wanted = false;
+        for (int index : indices) {
+            bitfields.get(senderId)[index] = true;
+            wanted |= !bitfields.get(self.getId())[index];
+        }
+
+        if (wanted) {
+            if (!beingChokedBy.contains(senderId) && !pendingRequests.containsKey(senderId)) {
+                // The sender has us unchoked but we stopped asking it for pieces, having had
+                // nothing to request when it last sent one; ask again now that it has something
+                Integer newPieceToRequest = pickNewPieceToRequest(senderId);
+                if (newPieceToRequest != -1) {
+                    servers.get(senderId).sendMessage(new InterestedMessage(sender));
+                    return makeRequest(sender, newPieceToRequest);
+                }
+            }
+            return new InterestedMessage(sender);
+        }
+        else if (pickNewPieceToRequest(senderId) == -1){
+            return new UninterestedMessage(sender);
         }
         else {
             return null;
@@ -509,13 +1256,83 @@ public class Peer {
             return null; // we don't have this piece, ignore it
         }
         else {
-            byte[] piece = loadPiece(msg.getIndex());
-            if (piece == null) {
-                System.out.printf("Peer %d could not load piece %d to send to Peer %d; aborting PieceMessage%n",
-                        self.getId(), msg.getIndex(), msg.getPeer().getId());
-                return null;
+            // Served by the uploader thread, in deficit round robin order across neighbors
+            if (!uploadScheduler.enqueue(msg)) {
+                System.out.printf("Peer %d requested piece %d from Peer %d without an upload share%n",
+                        msg.getPeer().getId(), msg.getIndex(), self.getId());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Body of the uploader thread. Serves queued requests in the
+     * order chosen by the UploadScheduler, skipping neighbors whose
+     * connection already has enough pieces queued so that one slow
+     * neighbor can't hold up the others.
+     */
+    private void serveUploads() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                RequestMessage msg = uploadScheduler.next(this::canQueuePiece, UPLOAD_POLL_MILLIS);
+                if (msg == null || !isUnchoked(msg.getPeer().getId())) {
+                    continue; // Nothing ready, or choked since the request was queued
+                }
+                byte[] piece = loadPiece(msg.getIndex());
+                if (piece == null) {
+                    System.out.printf("Peer %d could not load piece %d to send to Peer %d; aborting PieceMessage%n",
+                            self.getId(), msg.getIndex(), msg.getPeer().getId());
+                    continue;
+                }
+                servers.get(msg.getPeer().getId()).sendMessage(new PieceMessage(msg.getIndex(), piece, msg.getPeer()));
+                piecesSent.get(msg.getPeer().getId()).increment();
+            }
+        }
+        catch (InterruptedException e) {
+            // shutDown was called - just exit
+        }
+    }
+
+    private boolean canQueuePiece(int peerId) {
+        Server server = servers.get(peerId);
+        return server != null && server.getQueuedPieceFrames() < MAX_QUEUED_PIECES_PER_NEIGHBOR;
+    }
+
+    /**
+     * Turn the current choking decisions into upload shares:
+     * unchoked neighbors get their weight, choked neighbors get
+     * nothing and lose any queued requests
+     */
+    private void updateUploadShares() {
+        updateUploadShares(uploadScheduler, peers, preferred, optimisticallyUnchokedPeer.get());
+    }
+
+    /**
+     * Set the upload share of every neighbor from the choking decisions.
+     * The choking rounds call this before sending their unchokes: the
+     * scheduler refuses requests from neighbors without a share, so a
+     * request answering an unchoke sent first could be dropped, and with
+     * no choke to follow, the neighbor would wait for it forever.
+     * @param scheduler - the upload scheduler
+     * @param peers - the neighbors
+     * @param preferred - whether each neighbor is preferred
+     * @param optimisticId - the optimistically unchoked neighbor, or -1
+     */
+    static void updateUploadShares(UploadScheduler scheduler,
+                                   List<PeerConfiguration> peers,
+                                   Map<Integer, Boolean> preferred,
+                                   int optimisticId) {
+        for (PeerConfiguration peer : peers) {
+            int id = peer.getId();
+            if (optimisticId == id) {
+                scheduler.setWeight(id, OPTIMISTIC_UPLOAD_WEIGHT);
+            }
+            else if (preferred.get(id)) {
+                scheduler.setWeight(id, PREFERRED_UPLOAD_WEIGHT);
+            }
+            else {
+                scheduler.setWeight(id, 0);
             }
-            return new PieceMessage(msg.getIndex(), piece, msg.getPeer());
         }
     }
 
@@ -539,7 +1356,18 @@ public class Peer {
             // Success! We want it and don't have it
             try {
                 storePiece(msg.getPiece(), msg.getIndex());
-                pendingRequests.remove(msg.getPeer().getId(), msg.getIndex());
+                removeRequest(msg.getPeer().getId()); // checked above to be for this piece
+                piecesReceivedInLastInterval.merge(msg.getPeer().getId(), 1, Integer::sum);
+                long storedNanos = System.nanoTime();
+                PieceRequestEvent requestEvent = new PieceRequestEvent();
+                long requested = tracer.getRequestedNanos(msg.getPeer().getId());
+                if (requested != -1 && requestEvent.shouldCommit()) {
+                    requestEvent.peerId = msg.getPeer().getId();
+                    requestEvent.pieceIndex = msg.getIndex();
+                    requestEvent.latency = msg.getDecodedNanos() - requested;
+                    requestEvent.commit();
+                }
+                piecesReceived.get(msg.getPeer().getId()).increment();
 
                 // Find peers who were rendered uninteresting
                 Set<Integer> wasInteresting = new HashSet<>();
@@ -559,14 +1387,19 @@ public class Peer {
                 }
 
                 // Send Have and newly Uninterested messages
+                EncodedFrame have = new EncodedFrame(new HaveMessage(msg.getIndex(), self));
                 for (PeerConfiguration peer : peers) {
                     // Tell everyone we have it
-                    servers.get(peer.getId()).sendMessage(new HaveMessage(msg.getIndex(), peer));
+                    announcePiece(peer, msg.getIndex(), have);
                     // Tell them we are no longer interested, if applicable
                     if (wasInteresting.contains(peer.getId()) && pickNewPieceToRequest(peer.getId()) == -1) {
                         servers.get(peer.getId()).sendMessage(new UninterestedMessage(peer));
                     }
                 }
+                if (hasAllPieces(bitfields.get(self.getId()))) {
+                    announceCompletion();
+                }
+                tracer.completed(msg, storedNanos, System.nanoTime());
             }
             catch (IOException e) {
                 System.out.printf("Peer %d could not store piece %d due to IOException%n", self.getId(), msg.getIndex());
@@ -576,16 +1409,150 @@ public class Peer {
         if (beingChokedBy.contains(msg.getPeer().getId())) {
             return null; // We're being choked now, stop requesting
         }
+        else if (pendingRequests.containsKey(msg.getPeer().getId())) {
+            // This was a stale piece and our request is still outstanding; a second request
+            // would leave two in flight, and every later piece would mismatch the one we remember
+            return null;
+        }
         else {
             Integer newPieceToRequest = pickNewPieceToRequest(msg.getPeer().getId());
             if (newPieceToRequest == -1) {
                 return new UninterestedMessage(msg.getPeer());
             }
             else {
-                pendingRequests.put(msg.getPeer().getId(), newPieceToRequest);
-                return new RequestMessage(newPieceToRequest, msg.getPeer());
+                return makeRequest(msg.getPeer(), newPieceToRequest);
+            }
+        }
+    }
+
+    /**
+     * Tell a neighbor we have a piece: not at all if it already has
+     * the piece, as it will never request it from us; after
+     * haveBatchInterval ms together with the other pieces stored by
+     * then if it speaks HaveBatchMessage; otherwise at once.
+     * @param have - the HaveMessage for the piece, encoded once for every neighbor
+     */
+    private void announcePiece(PeerConfiguration peer, int index, EncodedFrame have) {
+        Server server = servers.get(peer.getId());
+        if (bitfields.get(peer.getId())[index]) {
+            suppressedHavesTo.add(peer.getId());
+            havesSuppressed.get(peer.getId()).increment();
+        }
+        else if (haveBatchInterval > 0 && server.supports(Capabilities.BATCH_HAVE)) {
+            pendingHaves.computeIfAbsent(peer.getId(), k -> new ArrayList<>()).add(index);
+            if (nextHaveFlushMillis < 0) {
+                nextHaveFlushMillis = nowMillis() + haveBatchInterval;
             }
         }
+        else {
+            server.sendMessage(have);
+        }
+    }
+
+    // Announce the pieces waiting for each neighbor, leaving out those it got in the meantime
+    private void flushHaves() {
+        for (PeerConfiguration peer : peers) {
+            List<Integer> pending = pendingHaves.remove(peer.getId());
+            if (pending == null) {
+                continue;
+            }
+            boolean[] neighborBitfield = bitfields.get(peer.getId());
+            int[] indices = pending.stream().mapToInt(Integer::intValue).filter(i -> !neighborBitfield[i]).toArray();
+            if (indices.length < pending.size()) {
+                suppressedHavesTo.add(peer.getId());
+                havesSuppressed.get(peer.getId()).add(pending.size() - indices.length);
+            }
+            for (Message frame : HaveBatchMessage.frames(indices, peer)) {
+                servers.get(peer.getId()).sendMessage(frame);
+            }
+        }
+        nextHaveFlushMillis = -1;
+    }
+
+    /**
+     * A neighbor only sees us finish once it knows of every piece,
+     * so send the neighbors some Haves were suppressed to our whole
+     * bitfield (which stands in for their waiting Haves too)
+     */
+    private void announceCompletion() {
+        for (PeerConfiguration peer : peers) {
+            if (suppressedHavesTo.remove(peer.getId())) {
+                pendingHaves.remove(peer.getId());
+                Server server = servers.get(peer.getId());
+                server.sendMessage(bitfieldFrame(server.supports(Capabilities.FAST_BITFIELD)));
+            }
+        }
+    }
+
+    /**
+     * Our bitfield, encoded once for as long as our pieces don't
+     * change and shared by every neighbor it is sent to; a seed
+     * encodes it once for the whole swarm. Called by the message
+     * loop and by the threads starting Servers.
+     * @param compact - whether the neighbor speaks Capabilities.FAST_BITFIELD
+     * @return the frame to send
+     */
+    private synchronized EncodedFrame bitfieldFrame(boolean compact) {
+        boolean[] bitfield = bitfields.get(self.getId());
+        int owned = countPieces(bitfield); // pieces are never lost, so the count identifies the bitfield
+        if (owned != bitfieldFramesPieces) {
+            bitfieldFrames = new EncodedFrame[2];
+            bitfieldFramesPieces = owned;
+        }
+        int i = compact ? 1 : 0;
+        if (bitfieldFrames[i] == null) {
+            bitfieldFrames[i] = new EncodedFrame(compact
+                    ? BitfieldMessage.compact(bitfield, self)
+                    : new BitfieldMessage(bitfield, self));
+        }
+        return bitfieldFrames[i];
+    }
+
+    // Note the request as pending, start its deadline, and build the message for it
+    private RequestMessage makeRequest(PeerConfiguration peer, int index) {
+        pendingRequests.put(peer.getId(), index);
+        requestDeadlines.cancel(requestTimeouts.remove(peer.getId())); // null unless a request was still pending
+        if (requestTimeout > 0) {
+            requestTimeouts.put(peer.getId(), requestDeadlines.schedule(peer.getId(), requestDeadlineMillis(peer.getId()), nowMillis()));
+        }
+        tracer.requested(peer.getId());
+        return new RequestMessage(index, peer);
+    }
+
+    // RequestTimeout, stretched for a link whose round trip time would make it too short
+    private long requestDeadlineMillis(int peerId) {
+        Server server = servers.get(peerId);
+        if (server == null || server.getSmoothedRttNanos() < 0) {
+            return requestTimeout;
+        }
+        long rtoMillis = Math.min(MAX_RTO_MILLIS,
+                (server.getSmoothedRttNanos() + 4 * server.getRttVariationNanos()) / 1_000_000L);
+        return Math.max(requestTimeout, RTOS_PER_REQUEST * rtoMillis);
+    }
+
+    // Forget the request pending to a neighbor, and cancel its deadline
+    private Integer removeRequest(int peerId) {
+        requestDeadlines.cancel(requestTimeouts.remove(peerId));
+        return pendingRequests.remove(peerId);
+    }
+
+    // Milliseconds until the message loop has a request deadline, keep-alive or Have flush to run, or -1 if it has none
+    private long millisUntilNextTimer(long now) {
+        long wait = requestDeadlines.size() > 0 ? requestDeadlines.millisUntilNextTick(now) : -1;
+        if (keepAliveInterval > 0) {
+            long untilKeepAlive = Math.max(nextKeepAliveMillis - now, 0);
+            wait = wait < 0 ? untilKeepAlive : Math.min(wait, untilKeepAlive);
+        }
+        if (nextHaveFlushMillis >= 0) {
+            long untilFlush = Math.max(nextHaveFlushMillis - now, 0);
+            wait = wait < 0 ? untilFlush : Math.min(wait, untilFlush);
+        }
+        return wait;
+    }
+
+    // Monotonic clock of the request deadlines, keep-alives and Have flushes
+    private static long nowMillis() {
+        return System.nanoTime() / 1_000_000L;
     }
 
     private Integer pickNewPieceToRequest(Integer peerId) {
@@ -596,6 +1563,16 @@ public class Peer {
             boolean[] peerBitfield,
             boolean[] selfBitfield,
             Map<Integer,Integer> requests
+    ) {
+        return pickNewPieceToRequest(peerBitfield, selfBitfield, requests, ThreadLocalRandom.current());
+    }
+
+    // As above, drawing the random choice from random (the simulator passes a seeded one)
+    public static Integer pickNewPieceToRequest(
+            boolean[] peerBitfield,
+            boolean[] selfBitfield,
+            Map<Integer,Integer> requests,
+            Random random
     ) {
         List<Integer> interestingPieces = new LinkedList<>();
         for (int i = 0; i < peerBitfield.length; i++) {
@@ -610,7 +1587,7 @@ public class Peer {
         }
         else {
             // Pick one randomly
-            Collections.shuffle(interestingPieces);
+            Collections.shuffle(interestingPieces, random);
             return interestingPieces.get(0);
         }
     }
@@ -634,6 +1611,27 @@ public class Peer {
         }
     }
 
+    /**
+     * The largest frame any neighbor may legitimately send,
+     * given the piece size and piece count in Common.cfg:
+     * either a full PieceMessage, a full BitfieldMessage or a full
+     * HaveBatchMessage
+     * @return maximum frame length in bytes
+     */
+    private int maxFrameLength() {
+        int pieceFrame = 9 + piecesize; // 4 length bytes + 1 type byte + 4 index bytes + piece
+        int bitfieldFrame = 5 + (numberOfPieces() + 7) / 8; // 4 length bytes + 1 type byte + bitfield
+        return Math.max(Math.max(pieceFrame, bitfieldFrame), HaveBatchMessage.MAX_FRAME_LENGTH);
+    }
+
+    // Size in bytes of the piece with the given index; only the last piece may be short
+    private int pieceLength(int index) {
+        if (index == numberOfPieces() - 1) {
+            return filesize - index * piecesize;
+        }
+        return piecesize;
+    }
+
     public String getFilePath() {
         return String.format("peer_%d/%s", self.getId(), filename);
     }
@@ -651,9 +1649,21 @@ public class Peer {
 
         byte[] piece = new byte[this.piecesize];
         int numBytesRead = -1;
+        long start = System.nanoTime();
+        PieceIoEvent event = new PieceIoEvent();
+        event.begin();
         try {
-            f.seek((long) index * this.piecesize);
-            numBytesRead = f.read(piece);
+            // The uploader thread and the message loop share f, and each access is a seek followed by a read/write
+            synchronized (f) {
+                f.seek((long) index * this.piecesize);
+                numBytesRead = f.read(piece);
+            }
+            diskReadLatency.recordSince(start);
+            if (event.shouldCommit()) {
+                event.pieceIndex = index;
+                event.bytes = numBytesRead;
+                event.commit();
+            }
         }
         catch (IOException e) {
             System.out.println("IOException thrown while attempting to load piece with index=" + index);
@@ -678,8 +1688,20 @@ public class Peer {
             throw new IndexOutOfBoundsException("Invalid piece index");
         }
 
-        f.seek(index);
-        f.write(piece);
+        long start = System.nanoTime();
+        PieceIoEvent event = new PieceIoEvent();
+        event.begin();
+        synchronized (f) {
+            f.seek((long) index * this.piecesize);
+            f.write(piece);
+        }
+        diskWriteLatency.recordSince(start);
+        if (event.shouldCommit()) {
+            event.pieceIndex = index;
+            event.bytes = piece.length;
+            event.write = true;
+            event.commit();
+        }
     }
 
     /**
@@ -695,6 +1717,17 @@ public class Peer {
             Map<Integer, Boolean> preferred,
             Map<Integer, Boolean> interested,
             Integer currentOptUnchokedNeighbor
+    ) {
+        return pickOptUnchokedNeighbor(peers, preferred, interested, currentOptUnchokedNeighbor, ThreadLocalRandom.current());
+    }
+
+    // As above, drawing the random choice from random (the simulator passes a seeded one)
+    public static Integer pickOptUnchokedNeighbor(
+            ArrayList<PeerConfiguration> peers,
+            Map<Integer, Boolean> preferred,
+            Map<Integer, Boolean> interested,
+            Integer currentOptUnchokedNeighbor,
+            Random random
     ) {
         ArrayList<PeerConfiguration> candidates = new ArrayList<>();
         for (PeerConfiguration peer : peers) {
@@ -705,21 +1738,30 @@ public class Peer {
         if (candidates.isEmpty()) {
             return -1;
         }
-        Collections.shuffle(candidates);
+        Collections.shuffle(candidates, random);
         return candidates.get(0).getId();
     }
 
+    // Find the neighbor with the specified id, or null
+    private PeerConfiguration findPeerWithId(int id) {
+        for (PeerConfiguration peer : peers) {
+            if (peer.getId() == id) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
     /**
      * Find the peer with the specified id
      * @return the peer
      */
     private PeerConfiguration getPeerWithId(int id) throws IllegalArgumentException {
-        for (PeerConfiguration peer : peers) {
-            if (peer.getId() == id) {
-                return peer;
-            }
+        PeerConfiguration peer = findPeerWithId(id);
+        if (peer == null) {
+            throw new IllegalArgumentException("No peer with specified id");
         }
-        throw new IllegalArgumentException("No peer with specified id");
+        return peer;
     }
 
     /**
@@ -738,27 +1780,27 @@ public class Peer {
             Map<Integer, Integer> scores,
             Map<Integer, Boolean> interested,
             int numberNeighbors
+    ) {
+        return computePreferredNeighbors(peers, scores, interested, numberNeighbors, ThreadLocalRandom.current());
+    }
+
+    // As above, breaking ties with random (the simulator passes a seeded one)
+    public static ConcurrentMap<Integer, Boolean> computePreferredNeighbors(
+            ArrayList<PeerConfiguration> peers,
+            Map<Integer, Integer> scores,
+            Map<Integer, Boolean> interested,
+            int numberNeighbors,
+            Random random
     ) {
         // TODO - BUG: This needs to only include peers who are interested in the result
         ArrayList<Integer> sortedPeers = new ArrayList<>();
         for (PeerConfiguration peer : peers) {
             sortedPeers.add(peer.getId());
         }
-        sortedPeers.sort(new Comparator<Integer>() {
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                int score1 = scores.get(o1);
-                int score2 = scores.get(o2);
-                if (score1 < score2) {
-                    return 1;
-                } else if (score1 > score2) {
-                    return -1;
-                } else {
-                    // Decide ties randomly, with equal probability
-                    return (Math.random() > 0.5) ? 1 : -1;
-                }
-            }
-        });
+        // Decide ties randomly, with equal probability: shuffle, then stable sort by score (highest first).
+        // A comparator which answers randomly for ties breaks the sort's contract and can throw.
+        Collections.shuffle(sortedPeers, random);
+        sortedPeers.sort(Comparator.comparing(scores::get, Comparator.reverseOrder()));
         ConcurrentMap<Integer, Boolean> result = new ConcurrentHashMap<>();
         int count = 0;
         for (Integer peer : sortedPeers) {
@@ -786,14 +1828,24 @@ public class Peer {
      */
     public static ConcurrentMap<Integer, Boolean> computePreferredNeighborsAltruistic(
             ArrayList<PeerConfiguration> peers,
-            ConcurrentMap<Integer, Boolean> interested,
+            Map<Integer, Boolean> interested,
             int numberNeighbors
+    ) {
+        return computePreferredNeighborsAltruistic(peers, interested, numberNeighbors, ThreadLocalRandom.current());
+    }
+
+    // As above, drawing the random choice from random (the simulator passes a seeded one)
+    public static ConcurrentMap<Integer, Boolean> computePreferredNeighborsAltruistic(
+            ArrayList<PeerConfiguration> peers,
+            Map<Integer, Boolean> interested,
+            int numberNeighbors,
+            Random random
     ) {
         ArrayList<Integer> shuffled = new ArrayList<>();
         for (PeerConfiguration peer : peers) {
             shuffled.add(peer.getId());
         }
-        Collections.shuffle(shuffled);
+        Collections.shuffle(shuffled, random);
         ConcurrentMap<Integer, Boolean> result = new ConcurrentHashMap<>();
         int count = 0;
         for (Integer peer : shuffled) {
@@ -822,13 +1874,23 @@ public class Peer {
             peer.setHasFile(hasAllPieces(bitfields.get(peer.getId())));
         }
         for (PeerConfiguration peer : peers) {
-            if (!peer.hasFile()) {
+            if (!peer.hasFile() && !departed.contains(peer.getId())) {
                 return false;
             }
         }
         return self.hasFile();
     }
 
+    static int countPieces(boolean[] bitfield) {
+        int count = 0;
+        for (boolean b : bitfield) {
+            if (b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public static boolean hasAllPieces(boolean[] bitfield) {
         for (boolean b : bitfield) {
             if (!b) {
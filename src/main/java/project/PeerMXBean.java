@@ -0,0 +1,57 @@
+package project;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of a running Peer, registered as
+ * project:type=Peer,id=[id]. Exposes the choking state and
+ * queues, and allows the choking parameters and rate limits
+ * to be tuned without a restart.
+ */
+public interface PeerMXBean {
+
+    int getId();
+
+    int getPiecesOwned();
+
+    int getPiecesTotal();
+
+    // Ids of the current preferred neighbors
+    int[] getPreferredNeighbors();
+
+    // Id of the optimistically unchoked neighbor, or -1
+    int getOptimisticallyUnchokedNeighbor();
+
+    // Ids of the neighbors currently choking this peer
+    int[] getChokedBy();
+
+    // Outstanding requests made by this peer; key=neighbor id, value=piece index
+    Map<Integer, Integer> getPendingRequests();
+
+    int getMessageQueueDepth();
+
+    int getUploadQueueDepth();
+
+    int getNumberPreferredNeighbors();
+
+    void setNumberPreferredNeighbors(int numberPreferredNeighbors);
+
+    // Seconds between preferred neighbor rounds
+    int getUnchokingInterval();
+
+    void setUnchokingInterval(int seconds);
+
+    // Seconds between optimistic unchoke rounds
+    int getOptimisticUnchokingInterval();
+
+    void setOptimisticUnchokingInterval(int seconds);
+
+    long getGlobalUploadRate();
+
+    long getGlobalDownloadRate();
+
+    // Rates are bytes per second, 0 for unlimited
+    void setUploadRateLimits(long globalRate, long neighborRate);
+
+    void setDownloadRateLimits(long globalRate, long neighborRate);
+}
@@ -0,0 +1,27 @@
+package project;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for reading or writing one piece of the file
+ */
+@Name("project.PieceIo")
+@Label("Piece I/O")
+@Category({"P2P", "Storage"})
+@Description("Piece read by loadPiece or written by storePiece")
+public class PieceIoEvent extends jdk.jfr.Event {
+
+    @Label("Piece Index")
+    int pieceIndex;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Write")
+    boolean write;
+}
@@ -0,0 +1,28 @@
+package project;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed when a requested piece arrives, with the
+ * time since the RequestMessage for it was queued
+ */
+@Name("project.PieceRequest")
+@Label("Piece Request")
+@Category({"P2P", "Peer"})
+@Description("Latency from sending a request to receiving the piece")
+public class PieceRequestEvent extends jdk.jfr.Event {
+
+    @Label("Peer Id")
+    int peerId;
+
+    @Label("Piece Index")
+    int pieceIndex;
+
+    @Label("Request Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
@@ -0,0 +1,200 @@
+package project;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Traces every downloaded piece through the stages between
+ * requesting it and telling the neighbors we have it:
+ *
+ *   requested   Peer built the RequestMessage
+ *   first byte  InHandler read the frame's length field
+ *   decoded     MessageFactory returned the PieceMessage
+ *   dequeued    Peer.run took the message off its queue
+ *   stored      storePiece returned
+ *   have        Have messages were queued to every neighbor
+ *
+ * The time spent in each stage (network, receive, queue, store,
+ * have, and the total) is recorded into the "piece_stage"
+ * histograms of the Peer's Metrics, both overall and per neighbor,
+ * so a slow download can be blamed on the network, the codec,
+ * queueing or the disk. The raw timestamps of every piece are kept
+ * for dump() only if asked for, since they grow with the piece count.
+ */
+public class PieceTracer {
+
+    public static final String[] STAGES = {"network", "receive", "queue", "store", "have", "total"};
+
+    private final Metrics metrics;
+    private final long origin = System.nanoTime();
+    private final ConcurrentMap<Integer, Long> requestedNanos = new ConcurrentHashMap<>(); // by peer id
+    private final Queue<long[]> traces; // null unless the raw timestamps are kept
+    // The "piece_stage" histograms, by stage in STAGES order: overall, and by peer id
+    private final Histogram[] stages = new Histogram[STAGES.length];
+    private final ConcurrentMap<Integer, Histogram[]> neighborStages = new ConcurrentHashMap<>();
+
+    /**
+     * @param metrics - receives the "piece_stage" histograms
+     * @param keepTraces - whether to keep every piece's timestamps for dump()
+     */
+    public PieceTracer(Metrics metrics, boolean keepTraces) {
+        this.metrics = metrics;
+        this.traces = keepTraces ? new ConcurrentLinkedQueue<>() : null;
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            stages[stage] = metrics.histogram("piece_stage", "stage", STAGES[stage]);
+        }
+    }
+
+    /**
+     * Note that a piece was just requested from a neighbor.
+     * Only one request per neighbor is outstanding at a time.
+     * @param peerId - id of the neighbor the piece was requested from
+     */
+    public void requested(int peerId) {
+        requestedNanos.put(peerId, System.nanoTime());
+    }
+
+    /**
+     * Forget the outstanding request to a neighbor, e.g. after being choked
+     * @param peerId - id of the neighbor
+     */
+    public void cancelled(int peerId) {
+        requestedNanos.remove(peerId);
+    }
+
+    /**
+     * @param peerId - id of a neighbor
+     * @return System.nanoTime() when the outstanding request to the neighbor was made, or -1 if there is none
+     */
+    public long getRequestedNanos(int peerId) {
+        Long requested = requestedNanos.get(peerId);
+        return requested != null ? requested : -1;
+    }
+
+    /**
+     * Record the stages of a piece which was just stored and announced
+     * @param msg - the received piece; its receive timestamps are set by Server and Peer
+     * @param storedNanos - System.nanoTime() after the piece was stored
+     * @param haveNanos - System.nanoTime() after the Have messages were queued
+     * @return the time from the request to the Have messages in nanoseconds, or -1 if the request wasn't traced
+     */
+    public long completed(PieceMessage msg, long storedNanos, long haveNanos) {
+        int peerId = msg.getPeer().getId();
+        Long requested = requestedNanos.remove(peerId);
+        if (requested == null) {
+            return -1;
+        }
+        long[] trace = {
+                msg.getIndex(), peerId, requested, msg.getReceivedNanos(), msg.getDecodedNanos(),
+                msg.getDequeuedNanos(), storedNanos, haveNanos
+        };
+        if (traces != null) {
+            traces.add(trace);
+        }
+
+        Histogram[] neighbor = neighborStages.computeIfAbsent(peerId, this::neighborHistograms);
+        // Stage i runs from timestamp i to timestamp i + 1
+        for (int stage = 0; stage < STAGES.length - 1; stage++) {
+            record(stage, neighbor, trace[3 + stage] - trace[2 + stage]);
+        }
+        record(STAGES.length - 1, neighbor, haveNanos - requested);
+        return haveNanos - requested;
+    }
+
+    private Histogram[] neighborHistograms(int peerId) {
+        Histogram[] histograms = new Histogram[STAGES.length];
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            histograms[stage] = metrics.histogram("piece_stage", "stage", STAGES[stage], "peer", Integer.toString(peerId));
+        }
+        return histograms;
+    }
+
+    private void record(int stage, Histogram[] neighbor, long nanos) {
+        stages[stage].record(nanos);
+        neighbor[stage].record(nanos);
+    }
+
+    /**
+     * Number of pieces traced so far
+     */
+    public long getTraceCount() {
+        return stages[STAGES.length - 1].snapshot().getCount();
+    }
+
+    /**
+     * Table of the median and 99th percentile of every stage,
+     * in milliseconds, overall and for each neighbor
+     * @return the table as printable text
+     */
+    public String summary() {
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-12s", "stage (ms)"));
+        for (String stage : STAGES) {
+            sb.append(String.format(" %10s", stage));
+        }
+        sb.append(String.format("%n"));
+        appendRows(sb, snapshot, "all");
+        for (Integer peerId : new TreeSet<>(neighborStages.keySet())) {
+            appendRows(sb, snapshot, peerId.toString());
+        }
+        return sb.toString();
+    }
+
+    private void appendRows(StringBuilder sb, Metrics.Snapshot snapshot, String peer) {
+        for (int percentile : new int[] {50, 99}) {
+            sb.append(String.format("%-12s", peer + " p" + percentile));
+            for (String stage : STAGES) {
+                Histogram.Snapshot h = peer.equals("all")
+                        ? snapshot.getHistogram("piece_stage", "stage", stage)
+                        : snapshot.getHistogram("piece_stage", "stage", stage, "peer", peer);
+                sb.append(h == null || h.getCount() == 0
+                        ? String.format(" %10s", "-")
+                        : String.format(" %10.3f", h.getPercentile(percentile) / 1e6));
+            }
+            sb.append(String.format("%n"));
+        }
+    }
+
+    /**
+     * Write one CSV line per traced piece, with each stage's
+     * timestamp in nanoseconds since this tracer was created
+     * @param out - where to write the CSV
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the tracer doesn't keep the traces
+     */
+    public void dump(Writer out) throws IOException {
+        if (traces == null) {
+            throw new IllegalStateException("PieceTracer was created without keeping traces");
+        }
+        out.write("piece,peer,requested,first_byte,decoded,dequeued,stored,have\n");
+        for (long[] trace : traces) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(trace[0]).append(',').append(trace[1]);
+            for (int i = 2; i < trace.length; i++) {
+                sb.append(',').append(trace[i] - origin);
+            }
+            out.write(sb.append('\n').toString());
+        }
+    }
+
+    /**
+     * Write the traced pieces to a file, see dump(Writer)
+     * @param path - file to create or replace
+     * @throws IOException if writing fails
+     */
+    public void dump(Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            dump(out);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package project;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keep-alive frame carrying the sender's clock; the receiver
+ * answers with a PongMessage echoing the timestamp, which gives
+ * the sender a round trip time sample. Both are answered and
+ * consumed by the Server, and never reach the Peer's queue.
+ */
+public class PingMessage extends Message {
+
+    static final byte TYPE = 8;
+
+    private long timestamp;
+
+    /**
+     * @param timestamp - sender's System.nanoTime() when the ping was made
+     * @param peer - The sender of the message (accessibly
+     *               by client).
+     */
+    public PingMessage(long timestamp, PeerConfiguration peer) {
+        this.timestamp = timestamp;
+        this.peer = peer;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        byte[] bytes = ByteBuffer.allocate(8).putLong(timestamp).array();
+        return StringEncoder.bytesToString(bytes);
+    }
+
+    @Override
+    protected int getLength() {
+        return 13; // 4 length bytes + 1 type byte + 8 timestamp bytes
+    }
+}
@@ -0,0 +1,43 @@
+package project;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Answer to a PingMessage, echoing its timestamp unchanged
+ */
+public class PongMessage extends Message {
+
+    static final byte TYPE = 9;
+
+    private long timestamp;
+
+    /**
+     * @param timestamp - timestamp of the PingMessage being answered
+     * @param peer - The sender of the message (accessibly
+     *               by client).
+     */
+    public PongMessage(long timestamp, PeerConfiguration peer) {
+        this.timestamp = timestamp;
+        this.peer = peer;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        byte[] bytes = ByteBuffer.allocate(8).putLong(timestamp).array();
+        return StringEncoder.bytesToString(bytes);
+    }
+
+    @Override
+    protected int getLength() {
+        return 13; // 4 length bytes + 1 type byte + 8 timestamp bytes
+    }
+}
@@ -0,0 +1,161 @@
+package project;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Bitfield sent as the lengths of alternating runs of missing and
+ * owned pieces, starting with a run of missing pieces (empty if
+ * piece 0 is owned). Each length is an unsigned LEB128 varint, so
+ * a download with a few long runs advertises millions of pieces in
+ * a few bytes, where the bitmap would take megabytes.
+ * Needs Capabilities.FAST_BITFIELD.
+ */
+public class RunLengthBitfieldMessage extends BitfieldMessage {
+
+    static final byte TYPE = 12;
+
+    // Exclusive end of each run; runs at even positions are missing pieces, at odd positions owned ones
+    private final int[] runEnds;
+
+    /**
+     * @param bitfield - which pieces are owned
+     * @param peer - the intended receiver
+     */
+    public RunLengthBitfieldMessage(boolean[] bitfield, PeerConfiguration peer) {
+        super(peer);
+        this.runEnds = runEnds(bitfield);
+    }
+
+    private RunLengthBitfieldMessage(int[] runEnds, PeerConfiguration peer) {
+        super(peer);
+        this.runEnds = runEnds;
+    }
+
+    /**
+     * Decode the payload of a received frame
+     * @param payload - the varint run lengths
+     * @param peer - the sender
+     * @return the message
+     * @throws IllegalArgumentException if a varint is malformed or the runs overflow an int
+     */
+    static RunLengthBitfieldMessage fromPayload(byte[] payload, PeerConfiguration peer) {
+        int[] ends = new int[payload.length]; // every run takes at least one byte
+        int count = 0;
+        long end = 0;
+        int pos = 0;
+        while (pos < payload.length) {
+            long length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos == payload.length || shift > 28) {
+                    throw new IllegalArgumentException("Malformed run length in RunLengthBitfieldMessage");
+                }
+                b = payload[pos++];
+                length |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            end += length;
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many pieces in RunLengthBitfieldMessage");
+            }
+            ends[count++] = (int) end;
+        }
+        return new RunLengthBitfieldMessage(Arrays.copyOf(ends, count), peer);
+    }
+
+    /**
+     * @param bitfield - which pieces are owned
+     * @return the serialized length of its run length encoding, without encoding it
+     */
+    static int encodedLength(boolean[] bitfield) {
+        return encodedLength(runEnds(bitfield));
+    }
+
+    private static int encodedLength(int[] runEnds) {
+        int length = 5; // 4 length bytes + 1 type byte
+        int start = 0;
+        for (int end : runEnds) {
+            length += varintLength(end - start);
+            start = end;
+        }
+        return length;
+    }
+
+    // Number of pieces the runs cover
+    public int getPieceCount() {
+        return runEnds.length == 0 ? 0 : runEnds[runEnds.length - 1];
+    }
+
+    @Override
+    boolean hasPiece(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Invalid bit index in bitfield");
+        }
+        else if (index >= getPieceCount()) {
+            return false; // past the runs, as past the padding of a bitmap
+        }
+        // The first run ending after index holds it
+        int run = Arrays.binarySearch(runEnds, index + 1);
+        if (run < 0) {
+            run = -run - 1;
+        }
+        else {
+            // Skip empty runs ending at the same place; only the first run can be empty
+            while (run > 0 && runEnds[run - 1] == index + 1) {
+                run--;
+            }
+        }
+        return run % 2 == 1;
+    }
+
+    @Override
+    protected byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    protected String getPayloadBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = 0;
+        for (int end : runEnds) {
+            int length = end - start;
+            while ((length & ~0x7F) != 0) {
+                out.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            start = end;
+        }
+        return StringEncoder.bytesToString(out.toByteArray());
+    }
+
+    @Override
+    protected int getLength() {
+        return encodedLength(runEnds);
+    }
+
+    private static int[] runEnds(boolean[] bitfield) {
+        int[] ends = new int[bitfield.length + 1];
+        int count = 0;
+        boolean owned = false; // the first run is of missing pieces
+        for (int i = 0; i < bitfield.length; i++) {
+            if (bitfield[i] != owned) {
+                ends[count++] = i;
+                owned = !owned;
+            }
+        }
+        ends[count++] = bitfield.length;
+        return Arrays.copyOf(ends, count);
+    }
+
+    private static int varintLength(int value) {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+}
@@ -6,6 +6,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class Server {
@@ -21,13 +28,80 @@ public class Server {
     private ObjectOutputStream out;
 
     private static final int BACKLOG_SIZE = 10;
+    private static final int MIN_FRAME_LENGTH = 5; // 4 length bytes + 1 type byte
+    private static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
     private static final MessageFactory MESSAGE_FACTORY = new MessageFactory();
     private static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
-    // BLOCKING_MESSAGE_SEND determines whether calls to Server::sendMessage are blocking to the caller
-    private static final boolean BLOCKING_SEND_MESSAGE = false;
-
+    // Frames are charged to the upload limiters in slices of this size, so a throttled piece goes out at an even pace
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+    // Frame bodies are read in slices of this size so the download limiters can pace them
+    private static final int READ_CHUNK_SIZE = 16 * 1024;
+    private static final int HANDSHAKE_LENGTH = 32;
+    // An accepted connection which doesn't send its handshake within this time is dropped
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    // How long stop() waits for queued frames to be written; the last Have messages of a Peer
+    // are sent right before it stops, and neighbors can't finish without them
+    private static final long STOP_DRAIN_MILLIS = 2_000;
+    private static final long NO_PING = Long.MIN_VALUE; // no ping awaits its pong
+
+    /*
+     * Outbound queues - control frames (choke, have, request, ...) are always
+     * written before any queued piece frames, so they never wait behind more
+     * than the piece frame currently on the wire.
+     */
+    private final BlockingQueue<Message> controlQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Message> pieceQueue = new LinkedBlockingQueue<>();
+    private final Semaphore outboundPending = new Semaphore(0); // one permit per queued frame
+    private final AtomicLong queuedBytes = new AtomicLong(0); // serialized size of all queued frames
+
+    // Inbound limits; set by the Peer before start()
+    private InboundBudget inboundBudget = null; // null -> unbounded
+    private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+
+    // Rate limits - the neighbor limiters belong to this connection, the global ones are shared by the Peer
+    private final TokenBucket uploadLimiter = new TokenBucket(0);
+    private final TokenBucket downloadLimiter = new TokenBucket(0);
+    private TokenBucket globalUploadLimiter = null; // null -> no global limit
+    private TokenBucket globalDownloadLimiter = null;
+
+    // Traffic counters for this connection; replaced by the Peer's shared registry in setMetrics()
+    private LongAdder bytesSent = new LongAdder();
+    private LongAdder bytesReceived = new LongAdder();
+    private LongAdder framesSent = new LongAdder();
+    private LongAdder framesReceived = new LongAdder();
+
+    // Active connects: how many attempts, and the exponential backoff between them; set by the Peer before start()
+    private int connectAttempts = 1;
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 5_000;
+
+    // Protocol extensions we advertise in the handshake (none unless set before start()), and
+    // those the target advertised too, which are the ones this connection may use
+    private long localCapabilities = 0;
+    private volatile long capabilities = 0;
+
+    // Handshake already read by accept(), for passive Servers created from an Accepted connection
+    private String receivedHandshake = null;
+
+    // Time taken by the handshake, and when the connection was established; 0 until start() succeeds
+    private volatile long handshakeNanos = 0;
+    private volatile long connectedAtMillis = 0;
+
+    // Set by stop(); a connection which ends without it was lost, and the sink is told with a ConnectionLostMessage
+    private volatile boolean stopped = false;
+    private final AtomicBoolean lost = new AtomicBoolean(false);
+
+    // When the last frame was received, and the smoothed round trip time and its variation measured by
+    // pings (as TCP does, RFC 6298); written by the InHandler only, and -1 until the first pong
+    private volatile long lastReceivedNanos = 0;
+    private volatile long smoothedRttNanos = -1;
+    private volatile long rttVariationNanos = -1;
+    // Timestamp of the ping awaiting its pong, or NO_PING; only a pong echoing it is a round trip sample,
+    // since the timestamp in any other pong is whatever the neighbor chose to send
+    private final AtomicLong outstandingPing = new AtomicLong(NO_PING);
 
     private InHandler inputReader;
+    private OutHandler outputWriter;
     private MessageLogger sLog;
 
     /**
@@ -84,6 +158,85 @@ public class Server {
         this.messageSink = messageSink;
     }
 
+    /**
+     * Constructor for a passive Server on a connection whose
+     * streams were set up and handshake read by accept()
+     * @param self - the network configuration of this Server's Peer process
+     * @param target - the peer identified by the handshake
+     * @param accepted - the accepted connection
+     * @param logger - the Peer's logger
+     * @param messageSink - receives the incoming messages
+     */
+    public Server(PeerConfiguration self,
+                  PeerConfiguration target,
+                  Accepted accepted,
+                  MessageLogger logger,
+                  Consumer<Message> messageSink
+    ) {
+        this(self, target, accepted.socket, true, logger, messageSink);
+        this.in = accepted.in;
+        this.out = accepted.out;
+        this.receivedHandshake = accepted.handshake;
+    }
+
+    /**
+     * An accepted connection whose handshake has been read,
+     * so it is known which peer it came from
+     */
+    public static class Accepted {
+        private final Socket socket;
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+        private final String handshake;
+
+        private Accepted(Socket socket, ObjectInputStream in, ObjectOutputStream out, String handshake) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.handshake = handshake;
+        }
+
+        // The id the connecting peer claims in its handshake
+        public int getPeerId() {
+            return handshakeId(handshake);
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                System.out.println("Could not close rejected connection from " + socket.getRemoteSocketAddress());
+            }
+        }
+    }
+
+    /**
+     * Set up the streams of a newly accepted connection and read
+     * its handshake, so the connection can be bound to the peer
+     * it claims to be. Many connections may be accepted at once;
+     * this does not depend on any Server.
+     * @param socket - the accepted socket
+     * @return the connection and its handshake
+     * @throws IOException if the streams fail, or no complete handshake arrives in time
+     */
+    public static Accepted accept(Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        byte[] handshakeBytes = new byte[HANDSHAKE_LENGTH];
+        in.readFully(handshakeBytes);
+        socket.setSoTimeout(0);
+        return new Accepted(socket, in, out, StringEncoder.bytesToString(handshakeBytes));
+    }
+
+    // The peer id field of a handshake
+    private static int handshakeId(String raw) {
+        byte[] rawBytes = StringEncoder.stringToBytes(raw);
+        return ByteBuffer.wrap(rawBytes, 28, 4).getInt();
+    }
+
     /**
      * The start method which performs connection
      * setup and launches the input handling thread.
@@ -105,35 +258,69 @@ public class Server {
             assert socket != null; // Should use the constructor to set it!
         }
 
-        try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
-        }
-        catch (IOException e) {
-            System.out.println("Failure setting up input streams with target " + target);
+        if (in == null) {
+            try {
+                out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                in = new ObjectInputStream(socket.getInputStream());
+            }
+            catch (IOException e) {
+                System.out.println("Failure setting up input streams with target " + target);
+            }
         }
 
+        long handshakeStart = System.nanoTime();
         if (!doHandshake()) {
             System.out.printf("Could not successfully complete handshake from self (%d) to target %d%n",
                     self.getId(), target.getId());
             return false; // Terminate and kill this thread
         }
+        handshakeNanos = System.nanoTime() - handshakeStart;
+        connectedAtMillis = System.currentTimeMillis();
+        if (stopped) {
+            return false; // stop() was called while connecting; it has closed the socket
+        }
 
-        this.inputReader = new InHandler(in, target, messageSink);
+        lastReceivedNanos = System.nanoTime(); // idle from here until the first frame
+        this.inputReader = new InHandler(this);
         inputReader.start(); // Starts background process
+        this.outputWriter = new OutHandler(this);
+        outputWriter.start(); // Drains anything queued before the connection was ready
         return true;
     }
 
     public boolean stop() {
+        stopped = true;
+        long deadline = System.nanoTime() + STOP_DRAIN_MILLIS * 1_000_000L;
+        while (outputWriter != null && outputWriter.isAlive() && queuedBytes.get() > 0
+                && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
         if (inputReader != null && inputReader.isAlive()) {
             inputReader.interrupt();
         }
+        if (outputWriter != null && outputWriter.isAlive()) {
+            outputWriter.interrupt();
+        }
 
         try {
-            in.close();
-            out.close();
-            socket.close();
+            // Any of these may be missing if the connection was never established
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
         }
         catch (IOException e) {
             System.out.println("Server::shutdown: Could not close socket successfully");
@@ -143,37 +330,195 @@ public class Server {
         return true;
     }
 
+    /**
+     * Treat the connection as dropped: close it, so both handler
+     * threads stop, and post a ConnectionLostMessage to the sink.
+     * Called by the handlers when reading or writing fails, and by
+     * the Peer when the target connects again over a new connection.
+     * Does nothing after stop(), or if the loss was already reported.
+     */
+    public void connectionLost() {
+        if (stopped || !lost.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Server::connectionLost: Could not close socket to " + target);
+        }
+        // Report before interrupting the writer, which may be the caller; an interrupted put would drop the report
+        messageSink.accept(new ConnectionLostMessage(target, this));
+        if (outputWriter != null) {
+            outputWriter.interrupt();
+        }
+    }
+
+    // Whether the connection dropped (rather than being stopped)
+    public boolean isLost() {
+        return lost.get();
+    }
+
+    /**
+     * Retry active connects with exponential backoff (and jitter, so
+     * peers started together don't retry in lockstep).
+     * Must be called before start().
+     * @param attempts - how many times to try connecting, at least 1
+     * @param initialBackoffMillis - wait after the first failed attempt
+     * @param maxBackoffMillis - longest wait between attempts
+     */
+    public void setConnectRetry(int attempts, long initialBackoffMillis, long maxBackoffMillis) {
+        this.connectAttempts = Math.max(1, attempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Share a byte budget for unhandled inbound messages
+     * across connections. Must be called before start().
+     * @param inboundBudget - the budget, or null for no limit
+     */
+    public void setInboundBudget(InboundBudget inboundBudget) {
+        this.inboundBudget = inboundBudget;
+    }
+
+    /**
+     * Set the largest frame accepted from the target; longer
+     * length fields are treated as a protocol error and close
+     * the input. Must be called before start().
+     * @param maxFrameLength - maximum frame length in bytes, including the length field
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Share Peer-wide rate limiters across connections,
+     * in addition to this connection's own limiters.
+     * Must be called before start().
+     * @param globalUpload - limiter for all outgoing bytes, or null
+     * @param globalDownload - limiter for all incoming bytes, or null
+     */
+    public void setGlobalRateLimiters(TokenBucket globalUpload, TokenBucket globalDownload) {
+        this.globalUploadLimiter = globalUpload;
+        this.globalDownloadLimiter = globalDownload;
+    }
+
+    /**
+     * Record this connection's traffic in a shared registry,
+     * labelled with the target's id. Must be called before start().
+     * @param metrics - the registry of the owning Peer
+     */
+    public void setMetrics(Metrics metrics) {
+        String id = Integer.toString(target.getId());
+        this.bytesSent = metrics.counter("bytes_sent", "peer", id);
+        this.bytesReceived = metrics.counter("bytes_received", "peer", id);
+        this.framesSent = metrics.counter("frames_sent", "peer", id);
+        this.framesReceived = metrics.counter("frames_received", "peer", id);
+        metrics.gauge(() -> controlQueue.size() + pieceQueue.size(), "outbound_queue_depth", "peer", id);
+    }
+
+    // Limiter for bytes sent to this neighbor; its rate may be changed at any time
+    public TokenBucket getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    // Limiter for bytes received from this neighbor; its rate may be changed at any time
+    public TokenBucket getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    /**
+     * Wait until both the neighbor and global limiters allow
+     * n more bytes, or just charge them if wait is false
+     */
+    private static void throttle(TokenBucket neighbor, TokenBucket global, int n, boolean wait)
+            throws InterruptedException {
+        if (wait) {
+            neighbor.acquire(n);
+            if (global != null) {
+                global.acquire(n);
+            }
+        }
+        else {
+            neighbor.consume(n);
+            if (global != null) {
+                global.consume(n);
+            }
+        }
+    }
+
     private static class InHandler extends Thread {
 
-        private final ObjectInputStream in;
-        private final PeerConfiguration target;
-        private final Consumer<Message> messageSink;
+        private final Server server;
 
-        public InHandler(ObjectInputStream in,
-                       PeerConfiguration target,
-                       Consumer<Message> messageSink
-        ) {
-            this.in = in;
-            this.target = target;
-            this.messageSink = messageSink;
+        public InHandler(Server server) {
+            this.server = server;
         }
 
         public void run() {
+            final PeerConfiguration target = server.target;
+            final InboundBudget budget = server.inboundBudget;
             try {
                 while (!this.isInterrupted()) {
-                    //String rawMessage = (String) in.readObject();
                     byte[] lenBytes = {0,0,0,0};
-                    if (in.read(lenBytes, 0, 4) == -1) {
-                        break;
-                    }
+                    server.in.readFully(lenBytes, 0, 4);
+                    long receivedNanos = System.nanoTime();
+                    server.lastReceivedNanos = receivedNanos;
                     int len = ByteBuffer.wrap(lenBytes).getInt();
-                    byte[] content = new byte[len];
-                    System.arraycopy(lenBytes, 0, content, 0, 4);
-                    if (in.read(content, 4, len-4) == -1) {
-                        break;
+                    if (len < MIN_FRAME_LENGTH || len > server.maxFrameLength) {
+                        throw new ProtocolException(
+                                String.format("Frame length %d from %s outside [%d, %d]",
+                                        len, target, MIN_FRAME_LENGTH, server.maxFrameLength));
+                    }
+
+                    // Blocks (and stops reading the socket) until there is room for this frame
+                    if (budget != null) {
+                        budget.acquire(len);
                     }
-                    String rawMessage = StringEncoder.bytesToString(content);
-                    messageSink.accept(MESSAGE_FACTORY.makeMessage(rawMessage, target));
+                    Message msg;
+                    try {
+                        byte[] content = new byte[len];
+                        System.arraycopy(lenBytes, 0, content, 0, 4);
+                        readBody(content);
+                        String rawMessage = StringEncoder.bytesToString(content);
+                        msg = MESSAGE_FACTORY.makeMessage(rawMessage, target);
+                    }
+                    catch (IOException | InterruptedException | RuntimeException e) {
+                        if (budget != null) {
+                            budget.release(len);
+                        }
+                        if (e instanceof IllegalArgumentException) {
+                            // A frame which doesn't decode leaves nothing to trust in the rest of the stream
+                            ProtocolException malformed = new ProtocolException(
+                                    String.format("Malformed frame from %s: %s", target, e.getMessage()));
+                            malformed.initCause(e);
+                            throw malformed;
+                        }
+                        throw e;
+                    }
+                    server.bytesReceived.add(len);
+                    server.framesReceived.increment();
+                    // Pings are answered here rather than by the Peer, so its queue doesn't count toward the RTT
+                    if (msg instanceof PingMessage || msg instanceof PongMessage) {
+                        if (msg instanceof PingMessage) {
+                            server.sendMessage(new PongMessage(((PingMessage) msg).getTimestamp(), target));
+                        }
+                        else {
+                            server.handlePong((PongMessage) msg);
+                        }
+                        if (budget != null) {
+                            budget.release(len);
+                        }
+                        continue;
+                    }
+                    // The receiver releases the bytes once the message is handled
+                    msg.setChargedBytes(budget != null ? len : 0);
+                    msg.setReceivedNanos(receivedNanos);
+                    msg.setDecodedNanos(System.nanoTime());
+                    server.messageSink.accept(msg);
                 }
             }
             catch (EOFException e) {
@@ -184,57 +529,228 @@ public class Server {
                 System.out.println("Server::InHandler::run IOException thrown. Stopping input from " + target);
                 e.printStackTrace();
             }
-//            catch (ClassNotFoundException e) {
-//                System.out.println("Server::InHandler::run ClassNotFoundException thrown. Stopping input from " + target);
-//            }
+            catch (InterruptedException e) {
+                System.out.println("Server::InHandler::run interrupted. Stopping input from " + target);
+            }
+            finally {
+                // Unless the Server was stopped; also after an unexpected exception, so the Peer still
+                // learns that nothing more will be read from this connection
+                server.connectionLost();
+            }
             this.interrupt();
             /*
              * Do not close this.in because it is owned by Server
              */
         }
+
+        // Reads everything after the length field, pacing large bodies through the download limiters
+        private void readBody(byte[] content) throws IOException, InterruptedException {
+            for (int offset = 4; offset < content.length; offset += READ_CHUNK_SIZE) {
+                int n = Math.min(READ_CHUNK_SIZE, content.length - offset);
+                throttle(server.downloadLimiter, server.globalDownloadLimiter, n, content.length > READ_CHUNK_SIZE);
+                server.in.readFully(content, offset, n);
+            }
+        }
     }
 
+    /**
+     * Single writer thread per connection. Takes the next
+     * frame from the outbound queues, always preferring
+     * control frames over piece frames, and writes it to
+     * the output stream. A frame is written whole, so a
+     * control frame queued while a piece frame is being
+     * written waits for the rest of that piece: the latency
+     * bound is one piece frame, PieceSize / upload rate when
+     * throttled. Interleaving control frames inside a piece
+     * would need sub-piece block messages, which the protocol
+     * does not have.
+     */
     private static class OutHandler extends Thread {
 
-        private final Message message;
-        private final ObjectOutputStream out;
+        private final Server server;
 
-        public OutHandler(Message message, ObjectOutputStream out) {
-            this.message = message;
-            this.out = out;
+        public OutHandler(Server server) {
+            this.server = server;
         }
 
         public void run() {
             try {
-                //out.writeObject(message.serialize());
-                out.write(message.serializeToBytes());
-                out.flush();
+                while (!this.isInterrupted()) {
+                    server.outboundPending.acquire(); // Blocks until a frame is queued
+                    Message message = server.controlQueue.poll();
+                    if (message == null) {
+                        message = server.pieceQueue.poll();
+                    }
+                    byte[] bytes = message.serializeToBytes();
+                    writeFrame(bytes, isBulk(message));
+                    server.queuedBytes.addAndGet(-message.getLength());
+                    server.bytesSent.add(bytes.length);
+                    server.framesSent.increment();
+                }
+            }
+            catch (InterruptedException e) {
+                // Server::stop was called - just exit
             }
             catch (IOException e) {
-                System.out.println("Server::OutHandler::run IOException thrown. Message delivery failed");
+                System.out.println("Server::OutHandler::run IOException thrown. Stopping output to " + server.target);
                 e.printStackTrace();
-                this.interrupt(); // Interrupts itself to signal caller
+                server.connectionLost();
             }
+            this.interrupt();
+        }
+
+        // Control frames are charged to the upload limiters but never wait on them
+        private void writeFrame(byte[] bytes, boolean bulk) throws IOException, InterruptedException {
+            for (int offset = 0; offset < bytes.length; offset += WRITE_CHUNK_SIZE) {
+                int n = Math.min(WRITE_CHUNK_SIZE, bytes.length - offset);
+                throttle(server.uploadLimiter, server.globalUploadLimiter, n, bulk);
+                server.out.write(bytes, offset, n);
+            }
+            server.out.flush();
         }
     }
 
+    /**
+     * Queues a message for delivery to the target.
+     * Never blocks the caller; piece messages are queued
+     * behind any pending control messages.
+     * @param message - the message to send
+     * @return whether the message was queued
+     */
     public boolean sendMessage(Message message) {
-        OutHandler handler = new OutHandler(message, out);
-        handler.start();
-        if (BLOCKING_SEND_MESSAGE) {
-            // Block the caller until the send process completes
-            try {
-                handler.join();
-            }
-            catch (InterruptedException e) {
-                System.out.println("Server::OutHandler::run interrupted; Server::sendMessage may have failed");
-                e.printStackTrace();
-                return false;
-            }
+        queuedBytes.addAndGet(message.getLength());
+        if (isBulk(message)) {
+            pieceQueue.add(message);
         }
+        else {
+            controlQueue.add(message);
+        }
+        outboundPending.release();
         return true;
     }
 
+    // Number of piece frames waiting to be written to the target
+    public int getQueuedPieceFrames() {
+        return pieceQueue.size();
+    }
+
+    // Number of control frames waiting to be written to the target
+    public int getQueuedControlFrames() {
+        return controlQueue.size();
+    }
+
+    // Total size of the frames waiting to be written (or being written) to the target
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public PeerConfiguration getTarget() {
+        return target;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    public long getConnectedAtMillis() {
+        return connectedAtMillis;
+    }
+
+    /**
+     * Set the protocol extensions to advertise; must be called before start()
+     * @param capabilities - Capabilities bits, usually Capabilities.SUPPORTED
+     */
+    public void setCapabilities(long capabilities) {
+        this.localCapabilities = capabilities;
+    }
+
+    // Extensions both sides advertised; 0 until the handshake is done
+    public long getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * @param capability - a Capabilities bit
+     * @return whether this connection may use it
+     */
+    public boolean supports(long capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * Queue a ping; the pong it brings back updates the
+     * smoothed round trip time. A ping still unanswered is
+     * forgotten, and its pong will be ignored.
+     */
+    public void sendPing() {
+        long timestamp = System.nanoTime();
+        outstandingPing.set(timestamp);
+        sendMessage(new PingMessage(timestamp, target));
+    }
+
+    // Take a round trip sample from a pong, if it answers the outstanding ping; any other is dropped
+    private void handlePong(PongMessage pong) {
+        long sent = pong.getTimestamp();
+        if (sent == NO_PING || !outstandingPing.compareAndSet(sent, NO_PING)) {
+            System.out.printf("Server: ignored a pong from %s which answers no outstanding ping%n", target);
+            return;
+        }
+        long sampleNanos = System.nanoTime() - sent;
+        if (sampleNanos > 0) {
+            updateRtt(sampleNanos);
+        }
+    }
+
+    // Fold one round trip sample into the estimates, with the gains TCP uses
+    private void updateRtt(long sampleNanos) {
+        if (smoothedRttNanos < 0) {
+            rttVariationNanos = sampleNanos / 2;
+            smoothedRttNanos = sampleNanos;
+        }
+        else {
+            rttVariationNanos = (3 * rttVariationNanos + Math.abs(smoothedRttNanos - sampleNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + sampleNanos) / 8;
+        }
+    }
+
+    // Smoothed round trip time to the target, or -1 before the first pong
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    // Mean deviation of the round trip time, or -1 before the first pong
+    public long getRttVariationNanos() {
+        return rttVariationNanos;
+    }
+
+    // Time since the last frame was received, or 0 if the connection was never started
+    public long getIdleNanos() {
+        long last = lastReceivedNanos;
+        return last == 0 ? 0 : System.nanoTime() - last;
+    }
+
+    public boolean isConnected() {
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * Piece payloads are the only bulk frames in the protocol;
+     * everything else is a small control frame.
+     * @param message - the message to classify
+     * @return whether message should be sent at bulk priority
+     */
+    private static boolean isBulk(Message message) {
+        return message instanceof PieceMessage;
+    }
+
     /**
      * Runs the setup process to initialize
      * this Server's socket member. Either
@@ -246,8 +762,18 @@ public class Server {
         Socket conn = null;
         if (!passiveStart) {
             InetAddress address = getTargetAddress();
-            if (address != null) {
+            long backoff = initialBackoffMillis;
+            for (int attempt = 1; address != null && conn == null && attempt <= connectAttempts && !stopped; attempt++) {
                 conn = activeConnect(address, target.getPort());
+                if (conn == null && attempt < connectAttempts) {
+                    try {
+                        Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                    backoff = Math.min(backoff * 2, maxBackoffMillis);
+                }
             }
         }
         else {
@@ -334,15 +860,10 @@ public class Server {
             return false;
         }
 
-        // Check zero bytes are correct
-        byte zero = 0;
-        for (int i = 18; i < 28; i++) {
-            zero |= rawBytes[i];
-        }
-        if (zero != 0) {
-            System.out.printf("Bad handshake received from %d - bad zero bytes%n", target.getId());
-            return false;
-        }
+        // The reserved bytes carry the target's capabilities; bits we don't know are ignored
+        byte[] reserved = new byte[Capabilities.RESERVED_BYTES];
+        System.arraycopy(rawBytes, 18, reserved, 0, Capabilities.RESERVED_BYTES);
+        long offered = Capabilities.fromReservedBytes(reserved);
 
         // Check that id is correct
         byte[] idBytes = {0,0,0,0};
@@ -350,6 +871,7 @@ public class Server {
         ByteBuffer buf = ByteBuffer.wrap(idBytes);
         int id = buf.getInt();
         if (id == target.getId()) {
+            capabilities = localCapabilities & offered;
             return true;
         }
         else {
@@ -373,10 +895,10 @@ public class Server {
     }
 
     public String makeHandshakeMessage() {
-        final byte[] zeroBytes = {0,0,0,0,0,0,0,0,0,0};
+        byte[] reservedBytes = Capabilities.toReservedBytes(localCapabilities); // all zero unless capabilities were set
         byte[] idBytes = ByteBuffer.allocate(4).putInt(this.self.getId()).array();
         return HANDSHAKE_HEADER
-                + StringEncoder.bytesToString(zeroBytes)
+                + StringEncoder.bytesToString(reservedBytes)
                 + StringEncoder.bytesToString(idBytes);
     }
 
@@ -394,12 +916,16 @@ public class Server {
     private boolean doHandshake() {
         try {
             if (passiveStart) {
-                // Receive then send
-                byte[] handshakeBytes = new byte[32];
-                if (in.read(handshakeBytes, 0, 32) == -1) {
-                    return false;
+                // Receive (unless accept() already did) then send
+                String handshake = receivedHandshake;
+                if (handshake == null) {
+                    byte[] handshakeBytes = new byte[32];
+                    if (in.read(handshakeBytes, 0, 32) == -1) {
+                        return false;
+                    }
+                    handshake = StringEncoder.bytesToString(handshakeBytes);
                 }
-                if (!validateHandshake(StringEncoder.bytesToString(handshakeBytes))) {
+                if (!validateHandshake(handshake)) {
                     return false;
                 }
                 return sendHandshake();
@@ -0,0 +1,45 @@
+package project;
+
+/**
+ * JMX management interface of one neighbor connection, registered
+ * as project:type=Server,peer=[self id],target=[target id].
+ */
+public interface ServerMXBean {
+
+    int getTargetId();
+
+    boolean isConnected();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    // Frames and bytes queued for sending but not yet written
+    int getQueuedControlFrames();
+
+    int getQueuedPieceFrames();
+
+    long getQueuedBytes();
+
+    long getHandshakeMillis();
+
+    long getConnectedAtMillis();
+
+    // Smoothed round trip time measured by pings, -1 until the first pong
+    long getSmoothedRttMicros();
+
+    // Time since anything was last received
+    long getIdleMillis();
+
+    // Protocol extensions negotiated in the handshake, e.g. "ping"
+    String getCapabilities();
+
+    // Rates are bytes per second, 0 for unlimited
+    long getUploadRate();
+
+    void setUploadRate(long bytesPerSecond);
+
+    long getDownloadRate();
+
+    void setDownloadRate(long bytesPerSecond);
+}
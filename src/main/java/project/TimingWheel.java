@@ -0,0 +1,178 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for timeouts which are usually cancelled
+ * before they expire, such as the deadlines of piece requests.
+ * Time is cut into ticks and each timeout hashes into the slot
+ * of the tick it expires in, so scheduling and cancelling are
+ * O(1) however many timeouts are pending; a timeout further
+ * away than one turn of the wheel waits in its slot for the
+ * later turn. Timeouts fire at the first tick at or after their
+ * deadline, so up to one tick late.
+ * Not thread safe; the owner schedules, cancels and advances
+ * from one thread, and the clock is passed in by the caller.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * A scheduled timeout; cancel it once it is no longer needed
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadlineTick;
+        private final int slot;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private boolean pending = true; // false once fired or cancelled
+
+        private Timeout(T item, long deadlineTick, int slot) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+            this.slot = slot;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public boolean isPending() {
+            return pending;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timeout<T>[] slots; // head of a doubly linked list of timeouts per slot
+    private final int mask;
+    private long currentTick = 0; // last tick whose slot has been expired
+    private int size = 0;
+
+    /**
+     * @param tickMillis - length of a tick, the resolution of the timeouts
+     * @param slotCount - number of slots, rounded up to a power of two
+     * @param nowMillis - current time, the start of tick 0
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int slotCount, long nowMillis) {
+        if (tickMillis <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("Tick length and slot count must be positive");
+        }
+        int n = Integer.highestOneBit(slotCount);
+        if (n < slotCount) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = nowMillis;
+        this.slots = (Timeout<T>[]) new Timeout<?>[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Schedule a timeout
+     * @param item - passed to the expiry callback of advance()
+     * @param delayMillis - time from now until it expires
+     * @param nowMillis - current time
+     * @return the timeout, for cancel()
+     */
+    public Timeout<T> schedule(T item, long delayMillis, long nowMillis) {
+        long deadline = nowMillis + Math.max(delayMillis, 0) - startMillis;
+        // Round up to a tick boundary, and never into a tick which has already been expired
+        long deadlineTick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        int slot = (int) (deadlineTick & mask);
+        Timeout<T> timeout = new Timeout<>(item, deadlineTick, slot);
+        link(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancel a timeout so it never fires
+     * @param timeout - from schedule(); may be null
+     * @return whether it was still pending
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (timeout == null || !timeout.pending) {
+            return false;
+        }
+        unlink(timeout);
+        timeout.pending = false;
+        size--;
+        return true;
+    }
+
+    /**
+     * Expire every timeout whose deadline has passed, tick by tick.
+     * The callback may schedule and cancel timeouts.
+     * @param nowMillis - current time
+     * @param onExpired - called with the item of each expired timeout
+     * @return the number of timeouts expired
+     */
+    public int advance(long nowMillis, Consumer<T> onExpired) {
+        long targetTick = (nowMillis - startMillis) / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick); // nothing to visit on the way
+            return 0;
+        }
+        int expiredCount = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+            int slot = (int) (currentTick & mask);
+            // Collect first, so timeouts scheduled by the callbacks don't disturb the walk
+            List<Timeout<T>> expired = new ArrayList<>();
+            for (Timeout<T> t = slots[slot]; t != null; t = t.next) {
+                if (t.deadlineTick <= currentTick) {
+                    expired.add(t);
+                }
+            }
+            for (Timeout<T> t : expired) {
+                if (cancel(t)) {
+                    onExpired.accept(t.item);
+                    expiredCount++;
+                }
+            }
+        }
+        return expiredCount;
+    }
+
+    /**
+     * @param nowMillis - current time
+     * @return milliseconds until advance() next has a tick to visit, at least 0
+     */
+    public long millisUntilNextTick(long nowMillis) {
+        return Math.max(startMillis + (currentTick + 1) * tickMillis - nowMillis, 0);
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    private void link(Timeout<T> timeout) {
+        Timeout<T> head = slots[timeout.slot];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[timeout.slot] = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
@@ -0,0 +1,110 @@
+package project;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket rate limiter measured in bytes per second.
+ * Callers take tokens for a whole chunk at a time (not per
+ * byte), and the bucket is refilled lazily from the clock
+ * whenever tokens are taken, so there is no refill thread.
+ * Takers are served in arrival order, which splits the
+ * rate evenly between connections sharing one bucket.
+ * The rate may be changed at any time; a rate of 0 means
+ * unlimited.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long MIN_BURST = 64 * 1024; // Always allow at least a few write chunks at once
+
+    private final ReentrantLock lock = new ReentrantLock(true); // fair -> FIFO between connections
+    private volatile long rate; // bytes per second, 0 -> unlimited
+    private long burst; // maximum tokens saved up while idle
+    private double tokens; // may go negative; takers sleep off the debt
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond) {
+        this.lastRefill = System.nanoTime();
+        setRate(bytesPerSecond);
+        this.tokens = burst;
+    }
+
+    /**
+     * Change the rate; takes effect for the next caller
+     * @param bytesPerSecond - new rate, or 0 for unlimited
+     */
+    public void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.rate = bytesPerSecond;
+            this.burst = Math.max(bytesPerSecond, MIN_BURST); // one second's worth
+            this.tokens = Math.min(tokens, burst);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    /**
+     * Take tokens for n bytes, sleeping until the bucket
+     * has paid off any debt
+     * @param n - number of bytes about to be transferred
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(int n) throws InterruptedException {
+        long waitNanos = take(n);
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        }
+    }
+
+    /**
+     * Take tokens for n bytes without waiting. Used for small
+     * control frames, which should never be delayed but still
+     * count against the rate.
+     * @param n - number of bytes about to be transferred
+     */
+    public void consume(int n) {
+        take(n);
+    }
+
+    // Returns how long the caller must wait before transferring n bytes
+    private long take(int n) {
+        if (rate == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= n;
+            if (tokens >= 0 || rate == 0) {
+                return 0;
+            }
+            return (long) (-tokens * NANOS_PER_SECOND / rate);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold lock
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,173 @@
+package project;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Schedules which pending piece request is served next,
+ * using deficit round robin over per-neighbor request queues.
+ * Each neighbor with queued requests earns quantum * weight
+ * bytes of credit per round and is served while its credit
+ * covers the size of its next piece, so upload bandwidth is
+ * split between neighbors in proportion to their weights no
+ * matter how many requests each one pipelines.
+ * A weight of 0 means the neighbor is choked: its queue is
+ * dropped and new requests from it are refused.
+ */
+public class UploadScheduler {
+
+    private final int quantum; // bytes of credit per round at weight 1
+    private final IntUnaryOperator pieceLength; // piece index -> bytes
+
+    private final Map<Integer, Deque<RequestMessage>> queues = new HashMap<>();
+    private final Map<Integer, Long> deficits = new HashMap<>();
+    private final Map<Integer, Integer> weights = new HashMap<>();
+    private final Deque<Integer> active = new ArrayDeque<>(); // round order of neighbors with queued requests
+    private boolean headCredited = false; // whether the head of active got its quantum this turn
+    private volatile int pendingCount = 0; // total queued requests; readable without the lock
+
+    /**
+     * @param quantum - bytes of credit per round at weight 1 (normally the piece size)
+     * @param pieceLength - computes the size in bytes of the piece with a given index
+     */
+    public UploadScheduler(int quantum, IntUnaryOperator pieceLength) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.quantum = quantum;
+        this.pieceLength = pieceLength;
+    }
+
+    /**
+     * Set the share of a neighbor. Weight 0 drops all of
+     * its queued requests.
+     * @param peerId - id of the neighbor
+     * @param weight - relative share of upload bandwidth
+     */
+    public synchronized void setWeight(int peerId, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative");
+        }
+        weights.put(peerId, weight);
+        if (weight == 0) {
+            Deque<RequestMessage> queue = queues.remove(peerId);
+            if (queue != null) {
+                pendingCount -= queue.size();
+                if (Integer.valueOf(peerId).equals(active.peekFirst())) {
+                    headCredited = false;
+                }
+                active.remove(peerId);
+            }
+            deficits.remove(peerId);
+        }
+    }
+
+    public synchronized int getWeight(int peerId) {
+        return weights.getOrDefault(peerId, 0);
+    }
+
+    /**
+     * Queue a request from a neighbor
+     * @param request - the request; its peer is the requester
+     * @return false if the requester currently has no share (is choked)
+     */
+    public synchronized boolean enqueue(RequestMessage request) {
+        int peerId = request.getPeer().getId();
+        if (getWeight(peerId) == 0) {
+            return false;
+        }
+        Deque<RequestMessage> queue = queues.get(peerId);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(peerId, queue);
+            deficits.put(peerId, 0L);
+            active.addLast(peerId);
+        }
+        queue.addLast(request);
+        pendingCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Pick the next request to serve, without blocking
+     * @param canSend - whether a neighbor can accept another piece right now;
+     *                neighbors which can't are skipped and keep their credit
+     * @return the next request, or null if none can be served
+     */
+    public synchronized RequestMessage next(IntPredicate canSend) {
+        int skipped = 0;
+        while (!active.isEmpty() && skipped < active.size()) {
+            int peerId = active.peekFirst();
+            if (!canSend.test(peerId)) {
+                rotate();
+                skipped++;
+                continue;
+            }
+
+            long deficit = deficits.get(peerId);
+            if (!headCredited) {
+                deficit += (long) quantum * getWeight(peerId);
+                headCredited = true;
+                skipped = 0; // crediting is progress, so keep looping until someone can be served
+            }
+
+            Deque<RequestMessage> queue = queues.get(peerId);
+            RequestMessage head = queue.peekFirst();
+            int cost = pieceLength.applyAsInt(head.getIndex());
+            if (deficit >= cost) {
+                queue.pollFirst();
+                pendingCount--;
+                deficit -= cost;
+                if (queue.isEmpty()) {
+                    // Idle neighbors don't bank credit
+                    queues.remove(peerId);
+                    deficits.remove(peerId);
+                    active.pollFirst();
+                    headCredited = false;
+                }
+                else {
+                    deficits.put(peerId, deficit);
+                }
+                return head;
+            }
+            // Out of credit for this round
+            deficits.put(peerId, deficit);
+            rotate();
+        }
+        return null;
+    }
+
+    /**
+     * Like next(), but waits up to timeoutMillis for a request
+     * to become available
+     */
+    public synchronized RequestMessage next(IntPredicate canSend, long timeoutMillis) throws InterruptedException {
+        RequestMessage request = next(canSend);
+        if (request == null) {
+            wait(timeoutMillis);
+            request = next(canSend);
+        }
+        return request;
+    }
+
+    public synchronized int pending(int peerId) {
+        Deque<RequestMessage> queue = queues.get(peerId);
+        return queue == null ? 0 : queue.size();
+    }
+
+    // Total queued requests; never blocks, so it is safe to call from monitoring threads
+    public int pending() {
+        return pendingCount;
+    }
+
+    // Must hold lock
+    private void rotate() {
+        active.addLast(active.pollFirst());
+        headCredited = false;
+    }
+}
@@ -0,0 +1,212 @@
+package project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+public class MessageLoggerTests {
+
+    private static final int LOG_ID = 990001;
+    private static final String TIMESTAMP_PATTERN = "\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2} ";
+
+    /**
+     * Writer whose writes wait until the gate opens, and then
+     * either fail or keep the text
+     */
+    private static class GatedWriter extends Writer {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StringBuilder text = new StringBuilder();
+        final boolean fail;
+
+        GatedWriter(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            entered.countDown();
+            try {
+                gate.await();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (fail) {
+                throw new IOException("Disk full");
+            }
+            synchronized (text) {
+                text.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int lines() {
+            synchronized (text) {
+                return text.toString().split(System.lineSeparator(), -1).length - 1;
+            }
+        }
+    }
+
+    private List<String> readLog(int id) {
+        File file = new File("log_peer_" + id + ".log");
+        try {
+            return Files.readAllLines(file.toPath());
+        }
+        catch (IOException e) {
+            Assertions.fail(e.toString());
+            return null;
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void testLinesAreFlushedOnClose() {
+        MessageLogger logger = new MessageLogger(LOG_ID);
+        for (int i = 0; i < 1000; i++) {
+            logger.logHaveMessage(LOG_ID, 1002, i);
+        }
+        logger.logTCP(LOG_ID, 1002);
+        logger.close();
+
+        List<String> lines = readLog(LOG_ID);
+        Assertions.assertEquals(1001, lines.size());
+        for (int i = 0; i < 1000; i++) {
+            String line = lines.get(i);
+            Assertions.assertTrue(line.matches(TIMESTAMP_PATTERN + ".*"), line);
+            Assertions.assertTrue(line.endsWith(
+                    " Peer " + LOG_ID + " received the 'have' message from 1002 for the piece " + i), line);
+        }
+        Assertions.assertTrue(lines.get(1000).endsWith(" Peer " + LOG_ID + " makes a connection to Peer 1002."));
+    }
+
+    @Test
+    void testConcurrentWritersLoseNothing() {
+        MessageLogger logger = new MessageLogger(LOG_ID + 1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int sender = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    logger.logHaveMessage(LOG_ID + 1, sender, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                Assertions.fail();
+            }
+        }
+        logger.close();
+
+        Assertions.assertEquals(4 * 20000, readLog(LOG_ID + 1).size());
+    }
+
+    @Test
+    void testNoFlushOnShutdownDropsQueuedLines() throws InterruptedException {
+        GatedWriter out = new GatedWriter(false);
+        MessageLogger logger = new MessageLogger(out, false);
+        logger.logTCP(LOG_ID, 1002);
+        out.entered.await(); // the writer is now stuck writing the first line
+        for (int i = 0; i < 1000; i++) {
+            logger.logHaveMessage(LOG_ID, 1002, i);
+        }
+
+        Thread closer = new Thread(logger::close);
+        closer.start();
+        while (closer.getState() != Thread.State.WAITING) { // joining the writer, so closed is set
+            Thread.sleep(1);
+        }
+        out.gate.countDown();
+        closer.join();
+
+        // The writer finishes the batch it was on and drops the rest
+        int written = out.lines();
+        Assertions.assertTrue(written >= 1 && written < 1001, "wrote " + written);
+        logger.logTCP(LOG_ID, 1002); // after close -> ignored
+        Assertions.assertEquals(written, out.lines());
+    }
+
+    @Test
+    void testFailedWriterDoesNotBlockLogging() throws InterruptedException {
+        GatedWriter out = new GatedWriter(true);
+        out.gate.countDown();
+        MessageLogger logger = new MessageLogger(out, true);
+
+        // More lines than the ring holds; the writer has died, so they must be dropped rather than waited on
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 50_000; i++) {
+                logger.logHaveMessage(LOG_ID, 1002, i);
+            }
+        });
+        producer.start();
+        producer.join(10_000);
+        Assertions.assertFalse(producer.isAlive());
+        Assertions.assertTrue(logger.getDroppedLines() > 0);
+        logger.close();
+    }
+
+    @Test
+    void testJournalRendersToTextLog() {
+        int id = LOG_ID + 3;
+        EventJournal journal = null;
+        try {
+            journal = new EventJournal(id);
+        }
+        catch (IOException e) {
+            Assertions.fail(e.toString());
+        }
+        MessageLogger logger = new MessageLogger(id, true, true, journal);
+        ConcurrentMap<Integer, Boolean> neighbors = new ConcurrentHashMap<>();
+        neighbors.put(1002, true);
+        neighbors.put(1003, false);
+        neighbors.put(1004, true);
+        logger.logTCP(id, 1002);
+        logger.logChangeNeighbors(id, neighbors);
+        logger.logChangeNeighbors(id, new ConcurrentHashMap<>());
+        logger.logChoked(id, 1002);
+        logger.logInterested(id, 1003);
+        for (int i = 0; i < 5000; i++) { // more than one journal buffer
+            logger.logHaveMessage(id, 1002, i);
+        }
+        logger.logDownload(id, 1002, 7, new boolean[] {true, false, true});
+        logger.logComplete(id);
+        logger.close();
+
+        List<String> text = readLog(id);
+        // Render into the same file name, with the same charset, as the text log
+        Path journalPath = Path.of(journal.getFilePath());
+        JournalFormatter.main(new String[] {journalPath.toString(), "log_peer_" + id + ".log"});
+        journalPath.toFile().delete();
+
+        List<String> fromJournal = readLog(id);
+        Assertions.assertEquals(text.size(), fromJournal.size());
+        for (int i = 0; i < text.size(); i++) {
+            // Timestamps come from separate clock reads, so compare the text after them
+            Assertions.assertEquals(text.get(i).substring(20), fromJournal.get(i).substring(20));
+        }
+    }
+}
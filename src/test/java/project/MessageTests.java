@@ -1,5 +1,13 @@
 package project;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -312,9 +320,184 @@ public class MessageTests {
         Assertions.assertEquals(receivedMsg, expectedMsg);
     }
 
+    @Test
+    void testPingMessageSerialization() {
+        byte[] bytes = {0,0,0,13,8,0,0,0,0,0,0,1,2};
+        String expected = new String(bytes);
+        PingMessage msg = new PingMessage(258, PEER1);
+        String received = msg.serialize();
+        Assertions.assertEquals(expected,received);
+
+        Message decoded = messageFromBytes(bytes, PEER1);
+        Assertions.assertTrue(decoded instanceof PingMessage);
+        Assertions.assertEquals(msg,decoded);
+        Assertions.assertEquals(258, ((PingMessage) decoded).getTimestamp());
+    }
+
+    @Test
+    void testPongMessageSerialization() {
+        byte[] bytes = {0,0,0,13,9,0,0,0,0,0,0,1,2};
+        PongMessage msg = new PongMessage(258, PEER1);
+        Assertions.assertEquals(new String(bytes), msg.serialize());
+
+        Message decoded = messageFromBytes(bytes, PEER1);
+        Assertions.assertTrue(decoded instanceof PongMessage);
+        Assertions.assertEquals(258, ((PongMessage) decoded).getTimestamp());
+        Assertions.assertNotEquals(new PingMessage(258, PEER1), msg);
+    }
+
+    @Test
+    void testMessageFactoryInvalidPingLength() {
+        byte[] bytes = {0,0,0,9,8,0,0,0,1};
+        String raw = new String(bytes);
+        MessageFactory factory = new MessageFactory();
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(raw, PEER1));
+    }
+
+    @Test
+    void testHaveAllHaveNoneSerialization() {
+        HaveAllMessage all = new HaveAllMessage(PEER1);
+        HaveNoneMessage none = new HaveNoneMessage(PEER1);
+        Assertions.assertEquals(new String(new byte[]{0,0,0,5,10}), all.serialize());
+        Assertions.assertEquals(new String(new byte[]{0,0,0,5,11}), none.serialize());
+
+        Message decoded = messageFromBytes(all.serializeToBytes(), PEER1);
+        Assertions.assertTrue(decoded instanceof HaveAllMessage);
+        Assertions.assertTrue(((BitfieldMessage) decoded).hasPiece(1000));
+        decoded = messageFromBytes(none.serializeToBytes(), PEER1);
+        Assertions.assertTrue(decoded instanceof HaveNoneMessage);
+        Assertions.assertFalse(((BitfieldMessage) decoded).hasPiece(0));
+    }
+
+    @Test
+    void testRunLengthBitfieldSerialization() {
+        boolean[] bitfield = new boolean[300];
+        bitfield[1] = true;
+        bitfield[2] = true;
+        Arrays.fill(bitfield, 100, 300, true);
+        RunLengthBitfieldMessage msg = new RunLengthBitfieldMessage(bitfield, PEER1);
+        // Runs: 1 missing, 2 owned, 97 missing, 200 owned (two byte varint)
+        byte[] bytes = {0,0,0,10,12,1,2,97,(byte) 0xC8,1};
+        Assertions.assertEquals(StringEncoder.bytesToString(bytes), msg.serialize());
+        Assertions.assertEquals(300, msg.getPieceCount());
+
+        Message decoded = messageFromBytes(bytes, PEER1);
+        Assertions.assertTrue(decoded instanceof RunLengthBitfieldMessage);
+        Assertions.assertEquals(msg, decoded);
+        for (int i = 0; i < bitfield.length; i++) {
+            Assertions.assertEquals(bitfield[i], ((BitfieldMessage) decoded).hasPiece(i));
+        }
+        Assertions.assertFalse(((BitfieldMessage) decoded).hasPiece(300));
+    }
+
+    @Test
+    void testRunLengthBitfieldStartingWithOwnedPiece() {
+        boolean[] bitfield = {true, true, false};
+        RunLengthBitfieldMessage msg = new RunLengthBitfieldMessage(bitfield, PEER1);
+        Assertions.assertEquals(new String(new byte[]{0,0,0,8,12,0,2,1}), msg.serialize());
+        Assertions.assertTrue(msg.hasPiece(0));
+        Assertions.assertTrue(msg.hasPiece(1));
+        Assertions.assertFalse(msg.hasPiece(2));
+    }
+
+    @Test
+    void testCompactBitfieldPicksSmallestEncoding() {
+        boolean[] bitfield = new boolean[10_000];
+        Assertions.assertTrue(BitfieldMessage.compact(bitfield, PEER1) instanceof HaveNoneMessage);
+        Arrays.fill(bitfield, true);
+        Assertions.assertTrue(BitfieldMessage.compact(bitfield, PEER1) instanceof HaveAllMessage);
+
+        // A few long runs: run lengths beat the 1250 byte bitmap
+        Arrays.fill(bitfield, 5000, 10_000, false);
+        BitfieldMessage compact = BitfieldMessage.compact(bitfield, PEER1);
+        Assertions.assertTrue(compact instanceof RunLengthBitfieldMessage);
+        Assertions.assertEquals(10, compact.getLength()); // runs of 0, 5000 and 5000
+
+        // Alternating pieces: every run is one byte, eight times the bitmap
+        for (int i = 0; i < bitfield.length; i++) {
+            bitfield[i] = i % 2 == 0;
+        }
+        compact = BitfieldMessage.compact(bitfield, PEER1);
+        Assertions.assertEquals(BitfieldMessage.class, compact.getClass());
+        Assertions.assertEquals(new BitfieldMessage(bitfield, PEER1), compact);
+    }
+
+    @Test
+    void testMessageFactoryInvalidCompactBitfields() {
+        MessageFactory factory = new MessageFactory();
+        String haveAllWithPayload = new String(new byte[]{0,0,0,6,10,1});
+        String emptyRuns = new String(new byte[]{0,0,0,5,12});
+        String truncatedVarint = StringEncoder.bytesToString(new byte[]{0,0,0,7,12,1,(byte) 0x80});
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(haveAllWithPayload, PEER1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(emptyRuns, PEER1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(truncatedVarint, PEER1));
+    }
+
+    @Test
+    void testHaveBatchMessageSerialization() {
+        byte[] bytes = {0,0,0,13,13,0,0,0,3,0,0,1,2};
+        HaveBatchMessage msg = new HaveBatchMessage(new int[]{3, 258}, PEER1);
+        Assertions.assertEquals(new String(bytes), msg.serialize());
+
+        Message decoded = messageFromBytes(bytes, PEER1);
+        Assertions.assertTrue(decoded instanceof HaveBatchMessage);
+        Assertions.assertEquals(msg, decoded);
+        Assertions.assertArrayEquals(new int[]{3, 258}, ((HaveBatchMessage) decoded).getIndices());
+        Assertions.assertNotEquals(new HaveBatchMessage(new int[]{3}, PEER1), msg);
+    }
+
+    @Test
+    void testHaveBatchSplitIntoFramesWithinLimit() {
+        int[] indices = new int[2 * HaveBatchMessage.MAX_INDICES + 10];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        List<Message> frames = HaveBatchMessage.frames(indices, PEER1);
+        Assertions.assertEquals(3, frames.size());
+        int next = 0;
+        for (Message frame : frames) {
+            Assertions.assertTrue(frame.getLength() <= HaveBatchMessage.MAX_FRAME_LENGTH);
+            for (int index : ((HaveBatchMessage) frame).getIndices()) {
+                Assertions.assertEquals(next++, index);
+            }
+        }
+        Assertions.assertEquals(indices.length, next);
+
+        // A single piece goes as a plain Have
+        List<Message> single = HaveBatchMessage.frames(new int[]{7}, PEER1);
+        Assertions.assertEquals(List.of(new HaveMessage(7, PEER1)), single);
+    }
+
+    @Test
+    void testMessageFactoryInvalidHaveBatchLength() {
+        MessageFactory factory = new MessageFactory();
+        String empty = new String(new byte[]{0,0,0,5,13});
+        String partialIndex = new String(new byte[]{0,0,0,11,13,0,0,0,3,0,0});
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(empty, PEER1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(partialIndex, PEER1));
+    }
+
+    @Test
+    void testEncodedFrameSharesOneEncoding() {
+        boolean[] bitfield = {true, false, true};
+        BitfieldMessage msg = new BitfieldMessage(bitfield, PEER1);
+        EncodedFrame frame = new EncodedFrame(msg);
+        Assertions.assertEquals(msg.serialize(), frame.serialize());
+        Assertions.assertSame(frame.serializeToBytes(), frame.serializeToBytes());
+        Assertions.assertEquals(msg.getLength(), frame.getLength());
+        Assertions.assertEquals(msg.getType(), frame.getType());
+        Assertions.assertNull(frame.getPeer());
+
+        // The receiver decodes it like the message it was made from
+        Message decoded = messageFromBytes(frame.serializeToBytes(), PEER2);
+        Assertions.assertEquals(new BitfieldMessage(bitfield, PEER2), decoded);
+        Assertions.assertEquals(new EncodedFrame(new BitfieldMessage(bitfield, PEER2)), frame);
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> frame.setPeer(PEER1));
+    }
+
     @Test
     void testMessageFactoryInvalidType() {
-        byte[] bytes = {0,0,0,5,12};
+        byte[] bytes = {0,0,0,5,99};
         String raw = new String(bytes);
         MessageFactory factory = new MessageFactory();
         Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(raw, PEER1));
@@ -327,4 +510,26 @@ public class MessageTests {
         Assertions.assertThrows(IllegalArgumentException.class, () -> factory.makeMessage(raw, PEER1));
     }
 
+    @Test
+    void testMessageFactoryRecordsDecodeEvent() throws Exception {
+        Path file = Files.createTempFile("decode", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FrameDecodeEvent.class).withoutThreshold();
+            recording.start();
+            messageFromBytes(new HaveMessage(3, PEER1).serializeToBytes(), PEER1);
+            messageFromBytes(new ChokeMessage(PEER1).serializeToBytes(), PEER1);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Assertions.assertEquals(2, events.size());
+        Assertions.assertEquals(PEER1.getId(), events.get(0).getInt("peerId"));
+        Assertions.assertEquals(4, events.get(0).getInt("messageType"));
+        Assertions.assertEquals(3, events.get(0).getInt("pieceIndex"));
+        Assertions.assertEquals(9, events.get(0).getInt("length"));
+        Assertions.assertEquals(0, events.get(1).getInt("messageType"));
+        Assertions.assertEquals(-1, events.get(1).getInt("pieceIndex"));
+    }
+
 }
@@ -0,0 +1,188 @@
+package project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsTests {
+
+    @Test
+    void testHistogramBucketsAreContiguous() {
+        // Every value maps to a bucket whose range contains it
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789L, Long.MAX_VALUE / 3};
+        for (long v : values) {
+            int bucket = Histogram.bucketOf(v);
+            Assertions.assertTrue(Histogram.lowestValueOf(bucket) <= v, "low bound of " + v);
+            Assertions.assertTrue(Histogram.highestValueOf(bucket) >= v, "high bound of " + v);
+        }
+        for (int bucket = 0; bucket < 1000; bucket++) {
+            Assertions.assertEquals(Histogram.highestValueOf(bucket) + 1, Histogram.lowestValueOf(bucket + 1));
+        }
+    }
+
+    @Test
+    void testHistogramPercentiles() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L); // 1us .. 1ms
+        }
+        Histogram.Snapshot s = h.snapshot();
+        Assertions.assertEquals(1000, s.getCount());
+        Assertions.assertEquals(1_000_000L, s.getMax());
+        Assertions.assertEquals(500_500.0, s.getMean(), 0.001);
+        // Within the ~3% bucket precision
+        Assertions.assertEquals(500_000.0, s.getPercentile(50), 500_000 * 0.04);
+        Assertions.assertEquals(990_000.0, s.getPercentile(99), 990_000 * 0.04);
+        Assertions.assertEquals(1_000_000L, s.getPercentile(100));
+        Assertions.assertEquals(0, new Histogram().snapshot().getPercentile(50));
+    }
+
+    @Test
+    void testSnapshotIsImmutable() {
+        Histogram h = new Histogram();
+        h.record(10);
+        Histogram.Snapshot s = h.snapshot();
+        h.record(20);
+        Assertions.assertEquals(1, s.getCount());
+        Assertions.assertEquals(2, h.snapshot().getCount());
+    }
+
+    @Test
+    void testRegistry() {
+        Metrics metrics = new Metrics();
+        metrics.counter("bytes_sent", "peer", "1002").add(10);
+        metrics.counter("bytes_sent", "peer", "1002").add(5);
+        metrics.counter("bytes_sent", "peer", "1003").add(1);
+        metrics.gauge(() -> 42, "queue_depth");
+        metrics.histogram("handle_latency", "type", "PieceMessage").record(1000);
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        Assertions.assertEquals(15, snapshot.getValue("bytes_sent", "peer", "1002"));
+        Assertions.assertEquals(1, snapshot.getValue("bytes_sent", "peer", "1003"));
+        Assertions.assertEquals(42, snapshot.getValue("queue_depth"));
+        Assertions.assertEquals(1, snapshot.getHistogram("handle_latency", "type", "PieceMessage").getCount());
+        Assertions.assertTrue(snapshot.getCounters().containsKey("bytes_sent{peer=\"1002\"}"));
+        Assertions.assertNotNull(snapshot.toString());
+    }
+
+    @Test
+    void testPrometheusFormat() {
+        Metrics metrics = new Metrics();
+        metrics.counter("bytes_sent", "peer", "1002").add(15);
+        metrics.gauge(() -> 3, "message_queue_depth");
+        Histogram h = metrics.histogram("handle_latency", "type", "HaveMessage");
+        h.record(2_000); // 2us
+        h.record(2_000_000); // 2ms
+
+        String text = MetricsHttpServer.format(metrics.snapshot());
+        Assertions.assertTrue(text.contains("# TYPE p2p_bytes_sent_total counter\n"));
+        Assertions.assertTrue(text.contains("p2p_bytes_sent_total{peer=\"1002\"} 15\n"));
+        Assertions.assertTrue(text.contains("# TYPE p2p_message_queue_depth gauge\n"));
+        Assertions.assertTrue(text.contains("p2p_message_queue_depth 3\n"));
+        Assertions.assertTrue(text.contains("# TYPE p2p_handle_latency_seconds histogram\n"));
+        Assertions.assertTrue(text.contains("p2p_handle_latency_seconds_bucket{type=\"HaveMessage\",le=\"1.0E-5\"} 1\n"));
+        Assertions.assertTrue(text.contains("p2p_handle_latency_seconds_bucket{type=\"HaveMessage\",le=\"0.01\"} 2\n"));
+        Assertions.assertTrue(text.contains("p2p_handle_latency_seconds_bucket{type=\"HaveMessage\",le=\"+Inf\"} 2\n"));
+        Assertions.assertTrue(text.contains("p2p_handle_latency_seconds_count{type=\"HaveMessage\"} 2\n"));
+    }
+
+    @Test
+    void testMetricsEndpoint() {
+        Metrics metrics = new Metrics();
+        metrics.counter("frames_received", "peer", "1002").add(7);
+        MetricsHttpServer server = null;
+        try {
+            server = new MetricsHttpServer(metrics, 0); // any free port
+            server.start();
+            URL url = new URL("http://127.0.0.1:" + server.getPort() + "/metrics");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            Assertions.assertEquals(200, conn.getResponseCode());
+            String body;
+            try (InputStream in = conn.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Assertions.assertTrue(body.contains("p2p_frames_received_total{peer=\"1002\"} 7"));
+        }
+        catch (IOException e) {
+            Assertions.fail(e.toString());
+        }
+        finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+    @Test
+    void testPieceTracerStages() throws IOException {
+        Metrics metrics = new Metrics();
+        PieceTracer tracer = new PieceTracer(metrics, true);
+        PeerConfiguration neighbor = new PeerConfiguration(1002, "localhost", 6009, true);
+        tracer.requested(1002);
+        long requested = tracer.getRequestedNanos(1002);
+
+        // Each stage takes 1ms longer than the previous one
+        PieceMessage msg = new PieceMessage(7, new byte[] {1, 2, 3}, neighbor);
+        msg.setReceivedNanos(requested + 1_000_000L);
+        msg.setDecodedNanos(requested + 3_000_000L);
+        msg.setDequeuedNanos(requested + 6_000_000L);
+        long total = tracer.completed(msg, requested + 10_000_000L, requested + 15_000_000L);
+
+        Assertions.assertEquals(15_000_000L, total);
+        Assertions.assertEquals(-1, tracer.getRequestedNanos(1002));
+        Assertions.assertEquals(1, tracer.getTraceCount());
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        for (int stage = 0; stage < 5; stage++) {
+            long expected = (stage + 1) * 1_000_000L;
+            long max = snapshot.getHistogram("piece_stage", "stage", PieceTracer.STAGES[stage], "peer", "1002").getMax();
+            Assertions.assertEquals(expected, max, expected * 0.04);
+        }
+        Assertions.assertEquals(1, snapshot.getHistogram("piece_stage", "stage", "total").getCount());
+        Assertions.assertTrue(tracer.summary().contains("1002 p99"));
+
+        StringWriter csv = new StringWriter();
+        tracer.dump(csv);
+        String[] lines = csv.toString().split("\n");
+        Assertions.assertEquals(2, lines.length);
+        String[] fields = lines[1].split(",");
+        Assertions.assertEquals("7", fields[0]);
+        Assertions.assertEquals("1002", fields[1]);
+        Assertions.assertEquals(15_000_000L, Long.parseLong(fields[7]) - Long.parseLong(fields[2]));
+    }
+
+    @Test
+    void testPieceTracerIgnoresCancelledRequest() {
+        PieceTracer tracer = new PieceTracer(new Metrics(), true);
+        tracer.requested(1002);
+        tracer.cancelled(1002);
+        PieceMessage msg = new PieceMessage(0, new byte[1], new PeerConfiguration(1002, "localhost", 6009, true));
+        Assertions.assertEquals(-1, tracer.completed(msg, 0, 0));
+        Assertions.assertEquals(0, tracer.getTraceCount());
+    }
+
+    @Test
+    void testPieceTracerWithoutTracesKeepsOnlyHistograms() {
+        Metrics metrics = new Metrics();
+        PieceTracer tracer = new PieceTracer(metrics, false);
+        PeerConfiguration neighbor = new PeerConfiguration(1002, "localhost", 6009, true);
+        for (int i = 0; i < 3; i++) {
+            tracer.requested(1002);
+            long requested = tracer.getRequestedNanos(1002);
+            PieceMessage msg = new PieceMessage(i, new byte[1], neighbor);
+            msg.setReceivedNanos(requested + 1);
+            msg.setDecodedNanos(requested + 2);
+            msg.setDequeuedNanos(requested + 3);
+            tracer.completed(msg, requested + 4, requested + 5);
+        }
+        Assertions.assertEquals(3, tracer.getTraceCount());
+        Assertions.assertEquals(3, metrics.snapshot().getHistogram("piece_stage", "stage", "total", "peer", "1002").getCount());
+        Assertions.assertTrue(tracer.summary().contains("1002 p50"));
+        Assertions.assertThrows(IllegalStateException.class, () -> tracer.dump(new StringWriter()));
+    }
+
+}
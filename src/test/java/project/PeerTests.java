@@ -178,6 +178,90 @@ public class PeerTests {
         Assertions.assertTrue(Peer.hasAllPieces(bitfield));
     }
 
+    @Test
+    void testUploadSharesAdmitNewlyUnchokedNeighbors() {
+        List<PeerConfiguration> peers = Arrays.asList(
+            new PeerConfiguration(1,"foo",8000,false),
+            new PeerConfiguration(2,"foo",8000,false),
+            new PeerConfiguration(3,"foo",8000,false)
+        );
+        UploadScheduler scheduler = new UploadScheduler(100, (int index) -> 100);
+        Map<Integer,Boolean> preferred = new HashMap<>();
+        preferred.put(1, true);
+        preferred.put(2, false);
+        preferred.put(3, false);
+        Peer.updateUploadShares(scheduler, peers, preferred, -1);
+        Assertions.assertTrue(scheduler.enqueue(new RequestMessage(0, peers.get(0))));
+
+        // A round prefers 2 over 1 and optimistically unchokes 3; once the shares are updated,
+        // the first requests of the neighbors it is about to unchoke are admitted
+        preferred.put(1, false);
+        preferred.put(2, true);
+        Peer.updateUploadShares(scheduler, peers, preferred, 3);
+        Assertions.assertTrue(scheduler.enqueue(new RequestMessage(1, peers.get(1))));
+        Assertions.assertTrue(scheduler.enqueue(new RequestMessage(2, peers.get(2))));
+        Assertions.assertFalse(scheduler.enqueue(new RequestMessage(3, peers.get(0))));
+        Assertions.assertEquals(0, scheduler.pending(1)); // choked, so its queued request was dropped
+    }
+
+    @Test
+    void testAcceptedNeighbor() {
+        List<PeerConfiguration> peers = Arrays.asList(
+            new PeerConfiguration(1001,"foo",8000,false),
+            new PeerConfiguration(1003,"foo",8000,false),
+            new PeerConfiguration(1004,"foo",8000,false)
+        );
+        Assertions.assertSame(peers.get(1), Peer.acceptedNeighbor(peers, 1002, 1003));
+        Assertions.assertSame(peers.get(2), Peer.acceptedNeighbor(peers, 1002, 1004));
+        Assertions.assertNull(Peer.acceptedNeighbor(peers, 1002, 1001)); // lower; we connect to it
+        Assertions.assertNull(Peer.acceptedNeighbor(peers, 1002, 1002)); // ourselves
+        Assertions.assertNull(Peer.acceptedNeighbor(peers, 1002, 1005)); // not in PeerInfo.cfg
+        Assertions.assertNull(Peer.acceptedNeighbor(peers, 1002, 1000));
+    }
+
+    @Test
+    void testBindServerSupersedesEarlierConnection() {
+        PeerConfiguration self = new PeerConfiguration(1002,"foo",8000,false);
+        PeerConfiguration neighbor = new PeerConfiguration(1003,"foo",8000,false);
+        List<Message> lost = new ArrayList<>();
+        ConcurrentMap<Integer, Server> servers = new ConcurrentHashMap<>();
+
+        Server first = new Server(self, neighbor, true, lost::add);
+        Assertions.assertNull(Peer.bindServer(servers, 1003, first));
+        Assertions.assertSame(first, servers.get(1003));
+        Assertions.assertTrue(lost.isEmpty());
+
+        // A second connection replaces the first, which is reported lost
+        Server second = new Server(self, neighbor, true, lost::add);
+        Assertions.assertSame(first, Peer.bindServer(servers, 1003, second));
+        Assertions.assertSame(second, servers.get(1003));
+        Assertions.assertTrue(first.isLost());
+        Assertions.assertEquals(1, lost.size());
+        Assertions.assertSame(first, ((ConnectionLostMessage) lost.get(0)).getServer());
+        Assertions.assertFalse(second.isLost());
+    }
+
+    @Test
+    void testBindServerRejectsConnectionLosingARace() {
+        PeerConfiguration self = new PeerConfiguration(1002,"foo",8000,false);
+        PeerConfiguration neighbor = new PeerConfiguration(1003,"foo",8000,false);
+        Server first = new Server(self, neighbor, true, (Message m) -> {});
+        Server winner = new Server(self, neighbor, true, (Message m) -> {});
+        Server loser = new Server(self, neighbor, true, (Message m) -> {});
+
+        // Another connection from the neighbor is bound while this one supersedes the first
+        ConcurrentMap<Integer, Server> servers = new ConcurrentHashMap<>() {
+            @Override
+            public boolean replace(Integer key, Server oldValue, Server newValue) {
+                super.replace(key, oldValue, winner);
+                return super.replace(key, oldValue, newValue);
+            }
+        };
+        servers.put(1003, first);
+        Assertions.assertSame(loser, Peer.bindServer(servers, 1003, loser));
+        Assertions.assertSame(winner, servers.get(1003));
+    }
+
     @Test
     void testLoggerTimeStamp() {
         String s = MessageLogger.getTimeStampString();
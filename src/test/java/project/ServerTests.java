@@ -3,8 +3,11 @@ package project;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -15,6 +18,7 @@ import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ServerTests {
@@ -129,6 +133,43 @@ public class ServerTests {
         }
     }
 
+    /**
+     * Two started Servers connected over localhost: the active side
+     * (peer 1012) connects to the passive side (peer 1011), which is
+     * created from a connection accepted on the listener
+     */
+    private static class ConnectedPair {
+        final Server active;
+        final Server passive;
+
+        ConnectedPair(ServerSocket listener, BlockingQueue<Message> activeSink, BlockingQueue<Message> passiveSink)
+                throws InterruptedException {
+            PeerConfiguration passiveSelf = new PeerConfiguration(1011, "localhost", listener.getLocalPort(), false);
+            PeerConfiguration activeSelf = new PeerConfiguration(1012, "localhost", 0, false);
+
+            AtomicReference<Server> passiveRef = new AtomicReference<>();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Server.Accepted accepted = Server.accept(listener.accept());
+                    Server server = new Server(passiveSelf, activeSelf, accepted, new MessageLogger(1011), passiveSink::add);
+                    if (accepted.getPeerId() == 1012 && server.start()) {
+                        passiveRef.set(server);
+                    }
+                }
+                catch (IOException e) {
+                    System.out.println("Could not accept: " + e);
+                }
+            });
+            acceptor.start();
+
+            active = new Server(activeSelf, passiveSelf, false, activeSink::add);
+            Assertions.assertTrue(active.start());
+            acceptor.join(5000);
+            passive = passiveRef.get();
+            Assertions.assertNotNull(passive);
+        }
+    }
+
     private InetAddress getLocalHost() {
         InetAddress address = null;
         try {
@@ -165,6 +206,64 @@ public class ServerTests {
         Assertions.assertTrue(server2.validateHandshake(msg));
     }
 
+    @Test
+    void testHandshakeNegotiatesCapabilities() {
+        long unknown = 1L << 40; // an extension from a newer peer
+        Server server1 = new Server(PEER1, PEER2, false, (Message m) -> {});
+        Server server2 = new Server(PEER2, PEER1, false, (Message m) -> {});
+        server1.setCapabilities(Capabilities.PING | unknown);
+        server2.setCapabilities(Capabilities.PING);
+
+        // Non-zero reserved bytes are accepted, and only the common bits are used
+        Assertions.assertTrue(server2.validateHandshake(server1.makeHandshakeMessage()));
+        Assertions.assertEquals(Capabilities.PING, server2.getCapabilities());
+        Assertions.assertTrue(server2.supports(Capabilities.PING));
+
+        // An old peer sends zeros and gets nothing
+        Server old = new Server(PEER1, PEER2, false, (Message m) -> {});
+        Assertions.assertTrue(server2.validateHandshake(old.makeHandshakeMessage()));
+        Assertions.assertEquals(0, server2.getCapabilities());
+        Assertions.assertFalse(server2.supports(Capabilities.PING));
+    }
+
+    /**
+     * The handshake check of a peer without Capabilities,
+     * which requires all ten reserved bytes to be zero
+     */
+    private static boolean validateHandshakeWithoutCapabilities(String raw) {
+        byte[] rawBytes = StringEncoder.stringToBytes(raw);
+        byte zero = 0;
+        for (int i = 18; i < 28; i++) {
+            zero |= rawBytes[i];
+        }
+        return rawBytes.length == 32 && raw.startsWith("P2PFILESHARINGPROJ") && zero == 0;
+    }
+
+    @Test
+    void testOldPeerAcceptsDefaultHandshake() {
+        // Servers advertise nothing unless told to, so an old peer accepts their handshake
+        Server server = new Server(PEER1, PEER2, false, (Message m) -> {});
+        Assertions.assertTrue(validateHandshakeWithoutCapabilities(server.makeHandshakeMessage()));
+        Assertions.assertFalse(new CommonConfiguration("Common.cfg").advertiseCapabilities);
+
+        // Advertising is opt-in because an old peer rejects it
+        server.setCapabilities(Capabilities.SUPPORTED);
+        Assertions.assertFalse(validateHandshakeWithoutCapabilities(server.makeHandshakeMessage()));
+    }
+
+    @Test
+    void testCapabilitiesReservedBytes() {
+        long capabilities = Capabilities.PING | (1L << 9) | (1L << 63);
+        byte[] reserved = Capabilities.toReservedBytes(capabilities);
+        Assertions.assertEquals(Capabilities.RESERVED_BYTES, reserved.length);
+        Assertions.assertEquals(1, reserved[9]); // capability 0 is the lowest bit of the last byte
+        Assertions.assertEquals(2, reserved[8]);
+        Assertions.assertEquals(0, reserved[0]);
+        Assertions.assertEquals(capabilities, Capabilities.fromReservedBytes(reserved));
+        Assertions.assertEquals("none", Capabilities.describe(0));
+        Assertions.assertEquals("ping", Capabilities.describe(Capabilities.PING));
+    }
+
     @Test
     void testPassiveConnectSuccessful() {
         int port = 8000;
@@ -416,4 +515,237 @@ public class ServerTests {
 
         Assertions.assertFalse(server.start());
     }
+
+    // A localhost port with nothing listening on it
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    void testConnectRetryBacksOff() throws Exception {
+        PeerConfiguration self = new PeerConfiguration(1012, "localhost", 0, false);
+        PeerConfiguration target = new PeerConfiguration(1011, "localhost", closedPort(), false);
+
+        // One attempt by default
+        Server server = new Server(self, target, false, (Message m) -> {});
+        long start = System.nanoTime();
+        Assertions.assertFalse(server.start());
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+
+        // Waits of 50-100, 100-200 and 200-400 ms (half the backoff plus jitter), doubling from 100 ms
+        server = new Server(self, target, false, (Message m) -> {});
+        server.setConnectRetry(4, 100, 5_000);
+        start = System.nanoTime();
+        Assertions.assertFalse(server.start());
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 350);
+
+        // Capped at 100 ms: at most 300 ms of waits, where doubling would wait at least 350 ms
+        server = new Server(self, target, false, (Message m) -> {});
+        server.setConnectRetry(4, 100, 100);
+        start = System.nanoTime();
+        Assertions.assertFalse(server.start());
+        long capped = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assertions.assertTrue(capped >= 150 && capped < 350, "waited " + capped + " ms");
+    }
+
+    @Test
+    void testConnectRetryReachesLateListener() throws Exception {
+        int port = closedPort();
+        PeerConfiguration passiveSelf = new PeerConfiguration(1011, "localhost", port, false);
+        PeerConfiguration activeSelf = new PeerConfiguration(1012, "localhost", 0, false);
+
+        // The neighbor starts listening after the first attempts have failed
+        AtomicReference<Server> passiveRef = new AtomicReference<>();
+        Thread late = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                try (ServerSocket listener = new ServerSocket(port)) {
+                    Server.Accepted accepted = Server.accept(listener.accept());
+                    Server server = new Server(passiveSelf, activeSelf, accepted, new MessageLogger(1011), (Message m) -> {});
+                    if (server.start()) {
+                        passiveRef.set(server);
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                System.out.println("Could not accept: " + e);
+            }
+        });
+        late.start();
+
+        Server active = new Server(activeSelf, passiveSelf, false, (Message m) -> {});
+        active.setConnectRetry(10, 100, 200);
+        Assertions.assertTrue(active.start());
+        late.join(5000);
+        Assertions.assertNotNull(passiveRef.get());
+        active.stop();
+        passiveRef.get().stop();
+    }
+
+    @Test
+    void testConnectionLostIsReported() throws Exception {
+        BlockingQueue<Message> activeSink = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> passiveSink = new LinkedBlockingQueue<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            ConnectedPair pair = new ConnectedPair(listener, activeSink, passiveSink);
+            Server active = pair.active;
+
+            // The passive side stops; the active side sees its connection drop
+            Assertions.assertTrue(pair.passive.stop());
+            Message lost = activeSink.poll(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(lost instanceof ConnectionLostMessage);
+            Assertions.assertSame(active, ((ConnectionLostMessage) lost).getServer());
+            Assertions.assertEquals(1011, lost.getPeer().getId());
+            Assertions.assertTrue(active.isLost());
+
+            // Reported only once, and never for a Server which was stopped
+            active.connectionLost();
+            Assertions.assertTrue(active.stop());
+            Thread.sleep(100);
+            Assertions.assertTrue(activeSink.isEmpty());
+            Assertions.assertTrue(passiveSink.isEmpty());
+            Assertions.assertFalse(pair.passive.isLost());
+        }
+    }
+
+    @Test
+    void testStopDrainsQueuedFrames() throws Exception {
+        BlockingQueue<Message> activeSink = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> passiveSink = new LinkedBlockingQueue<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            ConnectedPair pair = new ConnectedPair(listener, activeSink, passiveSink);
+
+            // A Peer queues its last Haves right before stopping; none may be lost
+            for (int i = 0; i < 1000; i++) {
+                pair.active.sendMessage(new HaveMessage(i, PEER1));
+            }
+            Assertions.assertTrue(pair.active.stop());
+            for (int i = 0; i < 1000; i++) {
+                Message received = passiveSink.poll(5, TimeUnit.SECONDS);
+                Assertions.assertTrue(received instanceof HaveMessage, "frame " + i + " was " + received);
+                Assertions.assertEquals(i, ((HaveMessage) received).getIndex());
+            }
+            pair.passive.stop();
+        }
+    }
+
+    @Test
+    void testUndecodableFrameDropsConnection() throws Exception {
+        BlockingQueue<Message> activeSink = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> passiveSink = new LinkedBlockingQueue<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            ConnectedPair pair = new ConnectedPair(listener, activeSink, passiveSink);
+
+            // A well-framed message of a type the receiver doesn't know
+            pair.active.sendMessage(new Message() {
+                @Override
+                protected String getPayloadBytes() {
+                    return "";
+                }
+
+                @Override
+                protected int getLength() {
+                    return 5;
+                }
+
+                @Override
+                protected byte getType() {
+                    return 99;
+                }
+            });
+            Message lost = passiveSink.poll(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(lost instanceof ConnectionLostMessage);
+            Assertions.assertSame(pair.passive, ((ConnectionLostMessage) lost).getServer());
+            Assertions.assertTrue(pair.passive.isLost());
+            pair.active.stop();
+            pair.passive.stop();
+        }
+    }
+
+    @Test
+    void testServerMBean() {
+        Server server = new Server(PEER1, PEER2, false, (Message m) -> {});
+        Management management = new Management();
+        management.registerServer(server, PEER1.getId());
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("project:type=Server,peer=1011,target=1012");
+            Assertions.assertTrue(mbs.isRegistered(name));
+            Assertions.assertEquals(PEER2.getId(), mbs.getAttribute(name, "TargetId"));
+            Assertions.assertEquals(false, mbs.getAttribute(name, "Connected"));
+
+            server.sendMessage(new HaveMessage(1, PEER2)); // queued until the connection is up
+            Assertions.assertEquals(1, mbs.getAttribute(name, "QueuedControlFrames"));
+            Assertions.assertEquals(9L, mbs.getAttribute(name, "QueuedBytes"));
+
+            mbs.setAttribute(name, new javax.management.Attribute("UploadRate", 1000L));
+            Assertions.assertEquals(1000L, server.getUploadLimiter().getRate());
+
+            management.unregisterAll();
+            Assertions.assertFalse(mbs.isRegistered(name));
+        }
+        catch (Exception e) {
+            Assertions.fail(e.toString());
+        }
+    }
+
+    @Test
+    void testPingMeasuresRtt() throws Exception {
+        BlockingQueue<Message> activeSink = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> passiveSink = new LinkedBlockingQueue<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            ConnectedPair pair = new ConnectedPair(listener, activeSink, passiveSink);
+            Server active = pair.active;
+            Assertions.assertEquals(-1, active.getSmoothedRttNanos());
+
+            active.sendPing();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (active.getSmoothedRttNanos() < 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(active.getSmoothedRttNanos() > 0);
+            Assertions.assertTrue(active.getRttVariationNanos() >= 0);
+            Assertions.assertTrue(active.getIdleNanos() < TimeUnit.SECONDS.toNanos(5));
+
+            // The ping and pong are consumed by the Servers, not passed on
+            Assertions.assertTrue(activeSink.isEmpty());
+            Assertions.assertTrue(passiveSink.isEmpty());
+            active.stop();
+            pair.passive.stop();
+        }
+    }
+
+    @Test
+    void testForgedPongIsIgnored() throws Exception {
+        BlockingQueue<Message> activeSink = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> passiveSink = new LinkedBlockingQueue<>();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            ConnectedPair pair = new ConnectedPair(listener, activeSink, passiveSink);
+            Server active = pair.active;
+            PeerConfiguration activeSelf = new PeerConfiguration(1012, "localhost", 0, false);
+
+            // Unsolicited, echoing a timestamp an hour old, and one from the future
+            long hour = TimeUnit.HOURS.toNanos(1);
+            pair.passive.sendMessage(new PongMessage(System.nanoTime() - hour, activeSelf));
+            pair.passive.sendMessage(new PongMessage(System.nanoTime() + hour, activeSelf));
+            // With a ping outstanding, a pong which doesn't echo it
+            active.sendPing();
+            pair.passive.sendMessage(new PongMessage(System.nanoTime() - hour, activeSelf));
+
+            // The real pong still arrives and is the only sample
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (active.getSmoothedRttNanos() < 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            Assertions.assertTrue(active.getSmoothedRttNanos() > 0);
+            Assertions.assertTrue(active.getSmoothedRttNanos() < TimeUnit.SECONDS.toNanos(5));
+            Assertions.assertTrue(active.getRttVariationNanos() < TimeUnit.SECONDS.toNanos(5));
+            Assertions.assertTrue(activeSink.isEmpty());
+            active.stop();
+            pair.passive.stop();
+        }
+    }
 }
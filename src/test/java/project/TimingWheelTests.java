@@ -0,0 +1,105 @@
+package project;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TimingWheelTests {
+
+    @Test
+    void testExpiresAtFirstTickAfterDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, 0);
+        List<String> expired = new ArrayList<>();
+        wheel.schedule("a", 250, 0); // due at 250, fires at the tick ending 300
+
+        Assertions.assertEquals(0, wheel.advance(299, expired::add));
+        Assertions.assertTrue(expired.isEmpty());
+        Assertions.assertEquals(1, wheel.advance(300, expired::add));
+        Assertions.assertEquals(List.of("a"), expired);
+        Assertions.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testCancelledNeverFires() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, 0);
+        List<String> expired = new ArrayList<>();
+        TimingWheel.Timeout<String> a = wheel.schedule("a", 100, 0);
+        wheel.schedule("b", 100, 0);
+        TimingWheel.Timeout<String> c = wheel.schedule("c", 100, 0);
+
+        Assertions.assertTrue(wheel.cancel(a));
+        Assertions.assertFalse(wheel.cancel(a));
+        Assertions.assertTrue(wheel.cancel(c));
+        Assertions.assertFalse(a.isPending());
+        Assertions.assertEquals(1, wheel.size());
+        wheel.advance(1000, expired::add);
+        Assertions.assertEquals(List.of("b"), expired);
+        Assertions.assertFalse(wheel.cancel(null));
+    }
+
+    @Test
+    void testTimeoutsLongerThanOneTurn() {
+        // 8 slots of 100 ms -> one turn is 800 ms
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, 0);
+        List<String> expired = new ArrayList<>();
+        wheel.schedule("near", 100, 0);
+        wheel.schedule("far", 900, 0); // same slot as "near", one turn later
+
+        wheel.advance(100, expired::add);
+        Assertions.assertEquals(List.of("near"), expired);
+        wheel.advance(800, expired::add);
+        Assertions.assertEquals(List.of("near"), expired);
+        wheel.advance(900, expired::add);
+        Assertions.assertEquals(List.of("near", "far"), expired);
+    }
+
+    @Test
+    void testCallbackMayReschedule() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(10, 4, 0);
+        List<Integer> expired = new ArrayList<>();
+        wheel.schedule(0, 10, 0);
+        for (long now = 10; now <= 50; now += 10) {
+            long scheduledAt = now;
+            wheel.advance(now, i -> {
+                expired.add(i);
+                wheel.schedule(i + 1, 10, scheduledAt);
+            });
+        }
+        Assertions.assertEquals(List.of(0, 1, 2, 3, 4), expired);
+        Assertions.assertEquals(1, wheel.size());
+    }
+
+    @Test
+    void testManyPendingTimeouts() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(100, 512, 0);
+        List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            timeouts.add(wheel.schedule(i, 1000 + i % 60_000, 0));
+        }
+        // Cancel every other one, as answered requests would be
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            wheel.cancel(timeouts.get(i));
+        }
+        Assertions.assertEquals(50_000, wheel.size());
+        int[] count = {0};
+        Assertions.assertEquals(50_000, wheel.advance(61_000, i -> {
+            Assertions.assertEquals(1, i % 2);
+            count[0]++;
+        }));
+        Assertions.assertEquals(50_000, count[0]);
+        Assertions.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testMillisUntilNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(100, 8, 1000);
+        Assertions.assertEquals(70, wheel.millisUntilNextTick(1030));
+        wheel.schedule("a", 50, 1030);
+        wheel.advance(1100, s -> { });
+        Assertions.assertEquals(0, wheel.size());
+        Assertions.assertEquals(100, wheel.millisUntilNextTick(1100));
+        Assertions.assertEquals(0, wheel.millisUntilNextTick(5000));
+    }
+}
@@ -0,0 +1,56 @@
+package project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTests {
+
+    @Test
+    void testUnlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0);
+        Assertions.assertTrue(bucket.isUnlimited());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                bucket.acquire(1024 * 1024);
+            }
+        }
+        catch (InterruptedException e) {
+            Assertions.fail();
+        }
+        Assertions.assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+
+    @Test
+    void testLimitedRateWaits() {
+        long rate = 1024 * 1024; // 1 MB/s, so the burst is also 1 MB
+        TokenBucket bucket = new TokenBucket(rate);
+        long start = System.nanoTime();
+        try {
+            bucket.acquire((int) rate); // drains the burst without waiting
+            bucket.acquire((int) rate / 2); // must wait ~0.5s for refill
+        }
+        catch (InterruptedException e) {
+            Assertions.fail();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        Assertions.assertTrue(elapsedMillis >= 400, "Expected to wait for refill, waited " + elapsedMillis + "ms");
+    }
+
+    @Test
+    void testConsumeDoesNotWait() {
+        TokenBucket bucket = new TokenBucket(64 * 1024);
+        long start = System.nanoTime();
+        bucket.consume(1024 * 1024);
+        Assertions.assertTrue(System.nanoTime() - start < 100_000_000L);
+    }
+
+    @Test
+    void testSetRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        Assertions.assertEquals(1000, bucket.getRate());
+        bucket.setRate(0);
+        Assertions.assertTrue(bucket.isUnlimited());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> bucket.setRate(-1));
+    }
+}
@@ -0,0 +1,103 @@
+package project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class UploadSchedulerTests {
+
+    private static final PeerConfiguration PEER1 = new PeerConfiguration(1, "foo", 8000, false);
+    private static final PeerConfiguration PEER2 = new PeerConfiguration(2, "foo", 8000, false);
+    private static final PeerConfiguration PEER3 = new PeerConfiguration(3, "foo", 8000, false);
+    private static final int PIECE_SIZE = 100;
+
+    private UploadScheduler makeScheduler() {
+        return new UploadScheduler(PIECE_SIZE, (int index) -> PIECE_SIZE);
+    }
+
+    @Test
+    void testAggressivePipelinerDoesNotStarveOthers() {
+        UploadScheduler scheduler = makeScheduler();
+        scheduler.setWeight(1, 1);
+        scheduler.setWeight(2, 1);
+        for (int i = 0; i < 10; i++) {
+            scheduler.enqueue(new RequestMessage(i, PEER1));
+        }
+        scheduler.enqueue(new RequestMessage(100, PEER2));
+        scheduler.enqueue(new RequestMessage(101, PEER2));
+
+        // Peer 2's requests are served within the first rounds, not after all of peer 1's
+        int[] expected = {1, 2, 1, 2, 1, 1};
+        for (int id : expected) {
+            RequestMessage next = scheduler.next((int peerId) -> true);
+            Assertions.assertNotNull(next);
+            Assertions.assertEquals(id, next.getPeer().getId());
+        }
+        Assertions.assertEquals(6, scheduler.pending());
+    }
+
+    @Test
+    void testWeightsBecomeShares() {
+        UploadScheduler scheduler = makeScheduler();
+        scheduler.setWeight(1, 3);
+        scheduler.setWeight(2, 1);
+        for (int i = 0; i < 40; i++) {
+            scheduler.enqueue(new RequestMessage(i, PEER1));
+            scheduler.enqueue(new RequestMessage(i, PEER2));
+        }
+
+        Map<Integer, Integer> served = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            RequestMessage next = scheduler.next((int peerId) -> true);
+            served.merge(next.getPeer().getId(), 1, Integer::sum);
+        }
+        Assertions.assertEquals(30, served.get(1));
+        Assertions.assertEquals(10, served.get(2));
+    }
+
+    @Test
+    void testSmallLastPieceUsesByteCost() {
+        // Piece 0 is a short last piece, so peer 1 gets two of them for one of peer 2's full pieces
+        UploadScheduler scheduler = new UploadScheduler(PIECE_SIZE, (int index) -> index == 0 ? PIECE_SIZE / 2 : PIECE_SIZE);
+        scheduler.setWeight(1, 1);
+        scheduler.setWeight(2, 1);
+        for (int i = 0; i < 4; i++) {
+            scheduler.enqueue(new RequestMessage(0, PEER1));
+            scheduler.enqueue(new RequestMessage(1, PEER2));
+        }
+        int[] expected = {1, 1, 2, 1, 1, 2};
+        for (int id : expected) {
+            Assertions.assertEquals(id, scheduler.next((int peerId) -> true).getPeer().getId());
+        }
+    }
+
+    @Test
+    void testChokedNeighborIsDropped() {
+        UploadScheduler scheduler = makeScheduler();
+        Assertions.assertFalse(scheduler.enqueue(new RequestMessage(0, PEER3))); // never unchoked
+
+        scheduler.setWeight(1, 1);
+        scheduler.enqueue(new RequestMessage(0, PEER1));
+        scheduler.enqueue(new RequestMessage(1, PEER1));
+        Assertions.assertEquals(2, scheduler.pending(1));
+
+        scheduler.setWeight(1, 0);
+        Assertions.assertEquals(0, scheduler.pending(1));
+        Assertions.assertNull(scheduler.next((int peerId) -> true));
+    }
+
+    @Test
+    void testBlockedNeighborIsSkipped() {
+        UploadScheduler scheduler = makeScheduler();
+        scheduler.setWeight(1, 1);
+        scheduler.setWeight(2, 1);
+        scheduler.enqueue(new RequestMessage(0, PEER1));
+        scheduler.enqueue(new RequestMessage(1, PEER2));
+
+        Assertions.assertEquals(2, scheduler.next((int peerId) -> peerId != 1).getPeer().getId());
+        Assertions.assertNull(scheduler.next((int peerId) -> peerId != 1));
+        Assertions.assertEquals(1, scheduler.next((int peerId) -> true).getPeer().getId());
+    }
+}